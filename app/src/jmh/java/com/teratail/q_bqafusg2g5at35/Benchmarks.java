@@ -0,0 +1,18 @@
+package com.teratail.q_bqafusg2g5at35;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.*;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+//全てのベンチマークを GC プロファイラ付きで流す. 引数で対象を絞れる (例: "FrameBenchmark.seal")
+public class Benchmarks {
+  public static void main(String[] args) throws RunnerException {
+    OptionsBuilder options = new OptionsBuilder();
+    if(args.length == 0) {
+      options.include(Benchmarks.class.getPackage().getName() + ".*Benchmark");
+    } else {
+      for(String arg : args) options.include(arg);
+    }
+    new Runner(options.addProfiler(GCProfiler.class).build()).run();
+  }
+}
@@ -0,0 +1,88 @@
+package com.teratail.q_bqafusg2g5at35;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+//コマンドコード毎に決まった応答を返す Transport. 送受信で割り当てないので, ベンチマークには Chipset/Device の分だけが出る.
+//freeze() までは元の Transport へそのまま流し, 各コマンドの最後の応答を覚える(初期化もそれで済ませる)
+class CannedTransport implements Transport {
+  private final Transport learning;
+  private final byte[][] responses = new byte[256][]; //コマンドコード -> 応答フレーム
+  private boolean frozen;
+  private int code = -1; //最後に送ったコマンド
+  private byte[] next; //次に返すフレーム. null なら受信タイムアウト
+  private byte[] after; //next の次に返すフレーム
+
+  CannedTransport(Transport learning) {
+    this.learning = learning;
+  }
+
+  //以降は覚えた応答だけを返す
+  CannedTransport freeze() {
+    frozen = true;
+    next = after = null;
+    return this;
+  }
+
+  @Override
+  public void setLogger(Logger log) {
+    learning.setLogger(log);
+  }
+
+  @Override
+  public void write(byte[] bytes) throws IOException {
+    write(bytes, bytes.length);
+  }
+  @Override
+  public void write(byte[] bytes, int length) throws IOException {
+    boolean ack = isAck(bytes, 0, length);
+    code = !ack && length > Frame.HEADER_LENGTH + 1 ? (bytes[Frame.HEADER_LENGTH + 1] & 0xff) : -1;
+    if(!frozen) {
+      learning.write(bytes, length);
+      return;
+    }
+    if(ack) {
+      next = after = null;
+    } else if(code < 0 || responses[code] == null) {
+      throw new IOException("no canned response: " + Bytes.toString(bytes, 0, length));
+    } else {
+      next = Chipset.ACK;
+      after = responses[code];
+    }
+  }
+
+  @Override
+  public byte[] read(int timeout) throws IOException {
+    byte[] buffer = new byte[Frame.MAX_LENGTH];
+    return Arrays.copyOf(buffer, read(buffer, 0, timeout));
+  }
+  @Override
+  public int read(byte[] buffer, int offset, int timeout) throws IOException {
+    if(!frozen) {
+      int len = learning.read(buffer, offset, timeout);
+      if(code >= 0 && !isAck(buffer, offset, len)) {
+        responses[code] = Arrays.copyOfRange(buffer, offset, offset + len);
+      }
+      return len;
+    }
+    byte[] frame = next;
+    if(frame == null) throw new IOException("receive error: len=-1");
+    if(frame.length > buffer.length - offset) throw new IOException("receive error: len=" + frame.length);
+    System.arraycopy(frame, 0, buffer, offset, frame.length);
+    next = after;
+    after = null;
+    return frame.length;
+  }
+
+  //Bytes.allEquals は可変長引数で割り当てるので使わない
+  private static boolean isAck(byte[] bytes, int offset, int length) {
+    if(length != Chipset.ACK.length) return false;
+    for(int i=0; i<length; i++) if(bytes[offset + i] != Chipset.ACK[i]) return false;
+    return true;
+  }
+
+  @Override
+  public void close() {
+    learning.close();
+  }
+}
@@ -0,0 +1,53 @@
+package com.teratail.q_bqafusg2g5at35;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+//CannedTransport 上で Chipset/Device のコマンド 1 往復. USB と RF の待ちも Transport の割り当ても無いので,
+//ホスト側の処理と割り当てだけが出る. 応答は SimulatedTransport から覚えたもの
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ChipsetBenchmark {
+  private static final byte[] NO_DATA = new byte[0];
+
+  private Chipset chipset;
+  private Device device;
+
+  @Setup
+  public void setup() throws IOException {
+    CannedTransport canned = new CannedTransport(new SimulatedTransport().setTimeScale(0));
+    chipset = new Chipset(canned, Logger.NONE);
+    chipset.send_command(Chipset.CMD.GetFirmwareVersion, NO_DATA);
+    canned.freeze();
+
+    SimulatedTransport transport = new SimulatedTransport().setTimeScale(0);
+    transport.addCard(new SimulatedTransport.Card(Bytes.of(1, 2, 3, 4, 5, 6, 7, 8), Bytes.of(0, 0xf1, 0, 0, 0, 1, 0x43, 0), 3));
+    canned = new CannedTransport(transport);
+    device = new Device(canned, Logger.NONE, "NFC Port-100 v1.11");
+    if(device.sense_ttf("212F") == null) throw new IllegalStateException("no card");
+    canned.freeze();
+  }
+
+  @TearDown
+  public void tearDown() throws Exception {
+    chipset.close();
+    device.close();
+  }
+
+  @Benchmark
+  public byte[] send_command() throws IOException {
+    return chipset.send_command(Chipset.CMD.GetFirmwareVersion, NO_DATA);
+  }
+
+  //InSetRF/InSetProtocol は省かれるので InCommRF 1 往復
+  @Benchmark
+  public byte[] sense_ttf() throws IOException {
+    return device.sense_ttf("212F");
+  }
+}
@@ -0,0 +1,62 @@
+package com.teratail.q_bqafusg2g5at35;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+//Frame と Bytes の組み立て/検査. -prof gc の gc.alloc.rate.norm で 1 回あたりの割り当て量を見る
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FrameBenchmark {
+  @Param({"2", "18", "256"})
+  int size; //コマンドデータの長さ
+
+  private byte[] command, frame, sealed;
+
+  @Setup
+  public void setup() {
+    command = new byte[size];
+    for(int i=0; i<size; i++) command[i] = (byte)i;
+    command[0] = (byte)0xd7;
+    frame = Frame.createRequest(command).frame;
+    sealed = new byte[Frame.HEADER_LENGTH + size + 2];
+    System.arraycopy(command, 0, sealed, Frame.HEADER_LENGTH, size);
+  }
+
+  //Frame は非公開なので生成コードに返さず Blackhole へ渡す
+  @Benchmark
+  public void createRequest(Blackhole blackhole) {
+    blackhole.consume(Frame.createRequest(command));
+  }
+
+  @Benchmark
+  public void createResponce(Blackhole blackhole) {
+    blackhole.consume(Frame.createResponce(frame));
+  }
+
+  //Chipset が使う割り当て無しの経路
+  @Benchmark
+  public int seal() {
+    return Frame.seal(sealed, size);
+  }
+
+  @Benchmark
+  public void typeOf(Blackhole blackhole) {
+    blackhole.consume(Frame.typeOf(frame, frame.length));
+  }
+
+  @Benchmark
+  public byte checkSum() {
+    return Bytes.checkSum(frame, Frame.HEADER_LENGTH, frame.length - 2);
+  }
+
+  @Benchmark
+  public void toHexString(Blackhole blackhole) {
+    blackhole.consume(Bytes.toString(frame));
+  }
+}
@@ -0,0 +1,75 @@
+package com.teratail.q_bqafusg2g5at35;
+
+import java.io.IOException;
+import java.util.concurrent.*;
+
+//ReaderSession への操作をリーダ毎の I/O スレッド 1 本に直列化して実行する. 呼び出し側はブロックしない
+class AsyncReader implements AutoCloseable {
+  //期限切れを通知する為だけのスレッド (I/O スレッドは USB 転送中ブロックしているので使えない)
+  private static final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(r -> {
+    Thread thread = new Thread(r, "AsyncReader-timer");
+    thread.setDaemon(true);
+    return thread;
+  });
+
+  private final ReaderSession session;
+  private final ScheduledExecutorService executor;
+
+  AsyncReader(ReaderSession session, String name) {
+    this.session = session;
+    this.executor = Executors.newSingleThreadScheduledExecutor(r -> new Thread(r, "AsyncReader-" + name));
+  }
+
+  <T> CompletableFuture<T> submit(ReaderSession.Operation<T> operation) {
+    return submit(operation, 0);
+  }
+
+  //timeout[ms] を過ぎると TimeoutException で完了する. 0 は無期限
+  //実行中の USB 転送は止められないので, 期限切れ/cancel は結果を捨てるだけ. 未着手ならそのまま実行しない
+  <T> CompletableFuture<T> submit(ReaderSession.Operation<T> operation, long timeout) {
+    CompletableFuture<T> future = new CompletableFuture<>();
+    try {
+      executor.execute(() -> {
+        if(future.isDone()) return; //cancel 済みか期限切れ
+        try {
+          future.complete(session.execute(operation));
+        } catch(Throwable e) {
+          future.completeExceptionally(e);
+        }
+      });
+    } catch(RejectedExecutionException e) {
+      future.completeExceptionally(new IOException("reader closed", e));
+      return future;
+    }
+    if(timeout > 0) {
+      ScheduledFuture<?> expiry = timer.schedule(
+              () -> future.completeExceptionally(new TimeoutException(timeout + "ms")), timeout, TimeUnit.MILLISECONDS);
+      future.whenComplete((r, e) -> expiry.cancel(false));
+    }
+    return future;
+  }
+
+  //I/O スレッドで delay[ms] 後に task を実行する. Poller の周期実行用
+  ScheduledFuture<?> schedule(Runnable task, long delay) {
+    return executor.schedule(task, delay, TimeUnit.MILLISECONDS);
+  }
+
+  CompletableFuture<String> open(long timeout) {
+    return submit(device -> device.chipsetName, timeout);
+  }
+
+  CompletableFuture<byte[]> sense_ttf(String target, long timeout) {
+    return submit(device -> device.sense_ttf(target), timeout);
+  }
+
+  //キューに残った操作を実行した後, I/O スレッドでセッションを閉じる. 呼び出し側は待たない
+  @Override
+  public void close() {
+    try {
+      executor.execute(session::close);
+    } catch(RejectedExecutionException ignore) {
+      //既に閉じている
+    }
+    executor.shutdown();
+  }
+}
@@ -0,0 +1,217 @@
+package com.teratail.q_bqafusg2g5at35;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.zip.CRC32;
+
+//FeliCa カードのブロック(IDm + サービスコード + ブロック番号 -> 16 バイト)のキャッシュ.
+//発行者情報や ID の様に変わらないブロックを, 同じカードがタッチする度に読み直さない為のもの.
+//cache() で決めた範囲のブロックだけをその ttl の間覚え, capacity を超えたら最も使われていないものから捨てる.
+//save() したファイルを load() すれば再起動後もそのまま当たる. スレッドセーフ
+//  ファイル: "P100BLK" 版(1) 件数(4) { IDm(8) サービスコード(2) ブロック番号(2) 期限[epoch ms](8) データ(16) } CRC32(4)
+//  数値はリトルエンディアン. 古く使われたものから並べる
+class BlockCache {
+  private static final byte[] MAGIC = "P100BLK".getBytes(StandardCharsets.US_ASCII);
+  private static final byte VERSION = 1;
+  private static final int HEADER_LENGTH = 8 + 4;
+  private static final int RECORD_LENGTH = 8 + 2 + 2 + 8 + 16;
+  static final int BLOCK_LENGTH = 16;
+
+  private static class Rule {
+    final int service, first, last;
+    final long ttl; //[ms] 0 は期限無し
+
+    Rule(int service, int first, int last, long ttl) {
+      this.service = service;
+      this.first = first;
+      this.last = last;
+      this.ttl = ttl;
+    }
+  }
+
+  private static class Key {
+    final long idm;
+    final int address; //サービスコード(16) ブロック番号(16)
+
+    Key(long idm, int service, int block) {
+      this.idm = idm;
+      this.address = service << 16 | block;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if(!(o instanceof Key)) return false;
+      Key key = (Key)o;
+      return idm == key.idm && address == key.address;
+    }
+    @Override
+    public int hashCode() {
+      long h = (idm ^ address) * 0x9e3779b97f4a7c15L;
+      return (int)(h ^ (h >>> 32));
+    }
+  }
+
+  //Entry だと LinkedHashMap の中では継承した Map.Entry を指してしまうので別の名前
+  private static class Block {
+    final byte[] data;
+    final long expires; //[epoch ms] Long.MAX_VALUE は期限無し
+
+    Block(byte[] data, long expires) {
+      this.data = data;
+      this.expires = expires;
+    }
+  }
+
+  private final int capacity;
+  private final List<Rule> rules = new ArrayList<>();
+  private final LinkedHashMap<Key,Block> entries; //アクセス順
+  private long hits, misses;
+
+  BlockCache(int capacity) {
+    if(capacity < 1) throw new IllegalArgumentException("capacity=" + capacity);
+    this.capacity = capacity;
+    entries = new LinkedHashMap<Key,Block>(16, 0.75f, true) {
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<Key,Block> eldest) {
+        return size() > BlockCache.this.capacity;
+      }
+    };
+  }
+
+  //service の first..last ブロックを ttl[ms] の間覚える. 0 は期限無し. 重なったら先に決めた方
+  synchronized BlockCache cache(int service, int first, int last, long ttl) {
+    if(service < 0 || service > 0xffff) throw new IllegalArgumentException("service=" + service);
+    if(first < 0 || last > 0xffff || first > last) throw new IllegalArgumentException("blocks=" + first + ".." + last);
+    if(ttl < 0) throw new IllegalArgumentException("ttl=" + ttl);
+    rules.add(new Rule(service, first, last, ttl));
+    return this;
+  }
+
+  //覚えて良いブロックなら期限[epoch ms], 駄目なら -1
+  private long expires(int service, int block, long now) {
+    for(Rule rule : rules) {
+      if(rule.service != service || block < rule.first || rule.last < block) continue;
+      return rule.ttl == 0 ? Long.MAX_VALUE : now + rule.ttl;
+    }
+    return -1;
+  }
+
+  //期限内なら複製を返す. 無ければ null
+  byte[] get(byte[] idm, int service, int block) {
+    return get(idm, service, block, System.currentTimeMillis());
+  }
+  synchronized byte[] get(byte[] idm, int service, int block, long now) {
+    Key key = new Key(Bytes.toLong(idm, 0), service, block);
+    Block entry = entries.get(key);
+    if(entry != null && now >= entry.expires) {
+      entries.remove(key);
+      entry = null;
+    }
+    if(entry == null) {
+      misses++;
+      return null;
+    }
+    hits++;
+    return entry.data.clone();
+  }
+
+  //規則に合うブロックだけ覚える. 覚えたら true
+  boolean put(byte[] idm, int service, int block, byte[] data) {
+    return put(idm, service, block, data, System.currentTimeMillis());
+  }
+  synchronized boolean put(byte[] idm, int service, int block, byte[] data, long now) {
+    if(data.length != BLOCK_LENGTH) throw new IllegalArgumentException("data.length=" + data.length);
+    long expires = expires(service, block, now);
+    if(expires < 0) return false;
+    entries.put(new Key(Bytes.toLong(idm, 0), service, block), new Block(data.clone(), expires));
+    return true;
+  }
+
+  //カードに書いた後などに, そのカードの分を全て捨てる
+  synchronized void invalidate(byte[] idm) {
+    long id = Bytes.toLong(idm, 0);
+    entries.keySet().removeIf(key -> key.idm == id);
+  }
+
+  synchronized void clear() {
+    entries.clear();
+  }
+
+  synchronized int size() {
+    return entries.size();
+  }
+
+  synchronized long getHits() { return hits; }
+  synchronized long getMisses() { return misses; }
+
+  //期限内のものを file に書く. 書きかけで落ちても前のファイルが残るよう, 別名で書いてから置き換える
+  void save(File file) throws IOException {
+    ByteBuffer buffer;
+    synchronized(this) {
+      long now = System.currentTimeMillis();
+      buffer = ByteBuffer.allocate(HEADER_LENGTH + entries.size() * RECORD_LENGTH + 4).order(ByteOrder.LITTLE_ENDIAN);
+      buffer.put(MAGIC).put(VERSION).putInt(0);
+      int count = 0;
+      for(Map.Entry<Key,Block> e : entries.entrySet()) {
+        Key key = e.getKey();
+        Block entry = e.getValue();
+        if(now >= entry.expires) continue;
+        buffer.putLong(key.idm).putShort((short)(key.address >>> 16)).putShort((short)key.address)
+                .putLong(entry.expires).put(entry.data);
+        count++;
+      }
+      buffer.putInt(MAGIC.length + 1, count);
+    }
+    CRC32 crc = new CRC32();
+    crc.update(buffer.array(), 0, buffer.position());
+    buffer.putInt((int)crc.getValue());
+
+    File tmp = new File(file.getPath() + ".tmp");
+    try(FileOutputStream out = new FileOutputStream(tmp)) {
+      out.write(buffer.array(), 0, buffer.position());
+      out.getFD().sync();
+    }
+    if(!tmp.renameTo(file)) {
+      tmp.delete();
+      throw new IOException("rename failed: " + file);
+    }
+  }
+
+  //save() したファイルから読み込む. 期限切れや今の規則に合わないものは捨てる. 読み込んだ件数を返す. ファイルが無ければ 0
+  int load(File file) throws IOException {
+    if(!file.exists()) return 0;
+    byte[] bytes;
+    try(DataInputStream in = new DataInputStream(new FileInputStream(file))) {
+      bytes = new byte[(int)file.length()];
+      in.readFully(bytes);
+    }
+    ByteBuffer buffer = ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN);
+    if(bytes.length < HEADER_LENGTH + 4 || !Arrays.equals(Arrays.copyOf(bytes, MAGIC.length), MAGIC) || bytes[MAGIC.length] != VERSION) {
+      throw new IOException("not a block cache: " + file);
+    }
+    int count = buffer.getInt(MAGIC.length + 1);
+    if(count < 0 || bytes.length != HEADER_LENGTH + (long)count * RECORD_LENGTH + 4) throw new IOException("broken block cache: " + file);
+    CRC32 crc = new CRC32();
+    crc.update(bytes, 0, bytes.length - 4);
+    if((int)crc.getValue() != buffer.getInt(bytes.length - 4)) throw new IOException("broken block cache: " + file);
+
+    int loaded = 0;
+    synchronized(this) {
+      long now = System.currentTimeMillis();
+      buffer.position(HEADER_LENGTH);
+      for(int i=0; i<count; i++) {
+        long idm = buffer.getLong();
+        int service = buffer.getShort() & 0xffff, block = buffer.getShort() & 0xffff;
+        long expires = Math.min(buffer.getLong(), expires(service, block, now)); //規則の ttl が縮んでいたら従う
+        byte[] data = new byte[BLOCK_LENGTH];
+        buffer.get(data);
+        if(now >= expires) continue;
+        entries.put(new Key(idm, service, block), new Block(data, expires));
+        loaded++;
+      }
+    }
+    return Math.min(loaded, capacity);
+  }
+}
@@ -2,7 +2,6 @@ package com.teratail.q_bqafusg2g5at35;
 
 import java.io.ByteArrayOutputStream;
 import java.nio.*;
-import java.util.StringJoiner;
 
 public class Bytes {
   static byte[] of(int... values) {
@@ -30,9 +29,13 @@ public class Bytes {
   }
 
   static short getShortInLittleEndianFrom(byte[] bytes, int index) {
-    return ByteBuffer.wrap(bytes, index, 2)
-            .order(ByteOrder.LITTLE_ENDIAN)
-            .getShort();
+    return (short)((bytes[index] & 0xff) | (bytes[index+1] << 8));
+  }
+
+  static long toLong(byte[] bytes, int index) {
+    long v = 0;
+    for(int i=0; i<8; i++) v = (v << 8) | (bytes[index+i] & 0xff);
+    return v;
   }
 
   static byte[] join(byte[] a, byte[] b) {
@@ -51,13 +54,31 @@ public class Bytes {
     return (byte)(~sum + 1);
   }
 
+  //ISO/IEC 14443-3 Type A の CRC_A. 送る時は下位バイトから
+  static int crcA(byte[] bytes, int start, int endExclude) {
+    int crc = 0x6363;
+    for(int i=start; i<endExclude; i++) {
+      int b = (bytes[i] ^ crc) & 0xff;
+      b = (b ^ (b << 4)) & 0xff;
+      crc = (crc >> 8) ^ (b << 8) ^ (b << 3) ^ (b >> 4);
+    }
+    return crc & 0xffff;
+  }
+
   static String toString(byte[] bytes) {
     return toString(bytes, 0, bytes.length);
   }
+  private static final char[] HEX = "0123456789abcdef".toCharArray();
+
   static String toString(byte[] bytes, int start, int endExclude) {
-    StringJoiner sj = new StringJoiner(" ");
-    for(int i = start; i < Math.min(bytes.length, endExclude); i++)
-      sj.add(String.format("%02x", bytes[i] & 0xff));
-    return sj.toString();
+    int end = Math.min(bytes.length, endExclude);
+    if(end <= start) return "";
+    char[] chars = new char[(end - start) * 3 - 1];
+    for(int i = start, j = 0; i < end; i++, j += 3) {
+      if(j > 0) chars[j-1] = ' ';
+      chars[j] = HEX[(bytes[i] >> 4) & 0xf];
+      chars[j+1] = HEX[bytes[i] & 0xf];
+    }
+    return new String(chars);
   }
 }
@@ -0,0 +1,133 @@
+package com.teratail.q_bqafusg2g5at35;
+
+import java.util.concurrent.atomic.*;
+
+//Chipset のコマンド毎の応答時間ヒストグラムとエラー数. I/O スレッドが記録し, 他のスレッドから snapshot() で読む
+class ChipsetStats {
+  static final int BUCKETS = 24; //i 番目は [2^i, 2^(i+1)) μs. 最後は上限無し
+  private static final int COMMANDS = Chipset.CMD.values().length;
+
+  private final AtomicLongArray ack = new AtomicLongArray(COMMANDS * BUCKETS); //送信から ACK まで
+  private final AtomicLongArray rsp = new AtomicLongArray(COMMANDS * BUCKETS); //ACK から応答まで
+  private final AtomicLongArray bytesOut = new AtomicLongArray(COMMANDS);
+  private final AtomicLongArray bytesIn = new AtomicLongArray(COMMANDS);
+  private final AtomicLongArray communicationErrors = new AtomicLongArray(32); //CommunicationException の status のビット毎
+  private final AtomicLongArray statusErrors = new AtomicLongArray(256); //StatusException のコード毎
+  private final AtomicLong nullResponses = new AtomicLong();
+  private final AtomicLong checksumErrors = new AtomicLong();
+  private final AtomicLong retries = new AtomicLong(); //再同期して送り直した回数
+
+  static int bucket(long nanos) {
+    long micros = nanos / 1000;
+    if(micros <= 0) return 0;
+    return Math.min(BUCKETS-1, 63 - Long.numberOfLeadingZeros(micros));
+  }
+
+  void recordAck(Chipset.CMD cmd, int out, long nanos) {
+    bytesOut.addAndGet(cmd.ordinal(), out);
+    ack.incrementAndGet(cmd.ordinal() * BUCKETS + bucket(nanos));
+  }
+  void recordResponse(Chipset.CMD cmd, int in, long nanos) {
+    bytesIn.addAndGet(cmd.ordinal(), in);
+    rsp.incrementAndGet(cmd.ordinal() * BUCKETS + bucket(nanos));
+  }
+  void recordCommunicationError(int status) {
+    for(int i=0; i<32; i++) if((status & (1 << i)) != 0) communicationErrors.incrementAndGet(i);
+  }
+  void recordStatusError(int errno) {
+    statusErrors.incrementAndGet(errno & 0xff);
+  }
+  void recordNullResponse() {
+    nullResponses.incrementAndGet();
+  }
+  void recordChecksumError() {
+    checksumErrors.incrementAndGet();
+  }
+  void recordRetry() {
+    retries.incrementAndGet();
+  }
+
+  Snapshot snapshot() {
+    return new Snapshot(copy(ack), copy(rsp), copy(bytesOut), copy(bytesIn),
+            copy(communicationErrors), copy(statusErrors), nullResponses.get(), checksumErrors.get(), retries.get());
+  }
+
+  private static long[] copy(AtomicLongArray array) {
+    long[] copy = new long[array.length()];
+    for(int i=0; i<copy.length; i++) copy[i] = array.get(i);
+    return copy;
+  }
+
+  static class Snapshot {
+    private final long[] ack, rsp, bytesOut, bytesIn, communicationErrors, statusErrors;
+    final long nullResponses, checksumErrors, retries;
+
+    private Snapshot(long[] ack, long[] rsp, long[] bytesOut, long[] bytesIn,
+                     long[] communicationErrors, long[] statusErrors, long nullResponses, long checksumErrors, long retries) {
+      this.ack = ack;
+      this.rsp = rsp;
+      this.bytesOut = bytesOut;
+      this.bytesIn = bytesIn;
+      this.communicationErrors = communicationErrors;
+      this.statusErrors = statusErrors;
+      this.nullResponses = nullResponses;
+      this.checksumErrors = checksumErrors;
+      this.retries = retries;
+    }
+
+    //previous からの増分
+    Snapshot delta(Snapshot previous) {
+      return new Snapshot(minus(ack, previous.ack), minus(rsp, previous.rsp),
+              minus(bytesOut, previous.bytesOut), minus(bytesIn, previous.bytesIn),
+              minus(communicationErrors, previous.communicationErrors), minus(statusErrors, previous.statusErrors),
+              nullResponses - previous.nullResponses, checksumErrors - previous.checksumErrors, retries - previous.retries);
+    }
+    private static long[] minus(long[] a, long[] b) {
+      long[] c = new long[a.length];
+      for(int i=0; i<c.length; i++) c[i] = a[i] - b[i];
+      return c;
+    }
+
+    long[] ackHistogram(Chipset.CMD cmd) {
+      return histogram(ack, cmd);
+    }
+    long[] responseHistogram(Chipset.CMD cmd) {
+      return histogram(rsp, cmd);
+    }
+    private static long[] histogram(long[] source, Chipset.CMD cmd) {
+      long[] histogram = new long[BUCKETS];
+      System.arraycopy(source, cmd.ordinal() * BUCKETS, histogram, 0, BUCKETS);
+      return histogram;
+    }
+
+    long count(Chipset.CMD cmd) {
+      long count = 0;
+      for(int i=0; i<BUCKETS; i++) count += ack[cmd.ordinal() * BUCKETS + i];
+      return count;
+    }
+    long bytesOut(Chipset.CMD cmd) { return bytesOut[cmd.ordinal()]; }
+    long bytesIn(Chipset.CMD cmd) { return bytesIn[cmd.ordinal()]; }
+    long communicationErrors(int bit) { return communicationErrors[bit]; }
+    long statusErrors(int errno) { return statusErrors[errno & 0xff]; }
+
+    //p(0..1) パーセンタイルが入るバケットの上端 [μs]. 記録が無ければ 0
+    long ackPercentile(Chipset.CMD cmd, double p) {
+      return percentile(ack, cmd, p);
+    }
+    long responsePercentile(Chipset.CMD cmd, double p) {
+      return percentile(rsp, cmd, p);
+    }
+    private static long percentile(long[] source, Chipset.CMD cmd, double p) {
+      int base = cmd.ordinal() * BUCKETS;
+      long total = 0;
+      for(int i=0; i<BUCKETS; i++) total += source[base + i];
+      if(total == 0) return 0;
+      long rank = (long)Math.ceil(total * p), seen = 0;
+      for(int i=0; i<BUCKETS; i++) {
+        seen += source[base + i];
+        if(seen >= rank && seen > 0) return 1L << (i + 1);
+      }
+      return 1L << BUCKETS;
+    }
+  }
+}
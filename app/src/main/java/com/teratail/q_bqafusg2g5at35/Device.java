@@ -1,11 +1,9 @@
 package com.teratail.q_bqafusg2g5at35;
 
-import android.hardware.usb.*;
-import android.util.Log;
-
 import java.io.*;
 import java.nio.*;
 import java.util.*;
+import java.util.function.Supplier;
 
 class Frame {
   enum Type {
@@ -14,39 +12,60 @@ class Frame {
   private static final Frame ACK = new Frame(Bytes.of(0, 0, 0xff, 0, 0xff, 0), Type.ACK);
   private static final Frame ERR = new Frame(Bytes.of(0, 0, 0xff, 0xff, 0xff), Type.ERR);
 
+  static final int HEADER_LENGTH = 8; //00 00 ff ff ff LEN LEN LCS
+  static final int MAX_LENGTH = 256+11;
+
   final byte[] frame;
   final Type type;
 
   static Frame createRequest(byte[] cmd) {
-    ByteArrayOutputStream baos = new ByteArrayOutputStream();
-    try {
-      byte[] lens = Bytes.toLittleShort(cmd.length);
-      baos.write(Bytes.of(0, 0, 0xff, 0xff, 0xff));
-      baos.write(lens);
-      baos.write(Bytes.checkSum(lens));
-      baos.write(cmd);
-      baos.write(Bytes.checkSum(cmd));
-      baos.write(0);
-    } catch(IOException ignore) {
-      //no process
-    }
-    return new Frame(baos.toByteArray(), Type.DATA);
+    byte[] frame = new byte[HEADER_LENGTH + cmd.length + 2];
+    System.arraycopy(cmd, 0, frame, HEADER_LENGTH, cmd.length);
+    seal(frame, cmd.length);
+    return new Frame(frame, Type.DATA);
   }
   static Frame createResponce(byte[] frame) {
     if(Arrays.equals(frame, ACK.frame)) return ACK;
     if(Arrays.equals(frame, ERR.frame)) return ERR;
-    Type type = Bytes.equals(frame, 3, 0xff, 0xff) ? Type.DATA : Type.UNKNOWN;
-    if(type == Type.DATA) {
-      if(Bytes.checkSum(frame, 5, 7+1) != 0) {
-        throw new IllegalStateException("length checksum error");
-      }
-      int len = Bytes.getShortInLittleEndianFrom(frame, 5);
-      if(Bytes.checkSum(frame, 8, 8+len+1) != 0) {
-        throw new IllegalStateException("data checksum error");
-      }
+    return new Frame(frame, typeOf(frame, frame.length));
+  }
+
+  //frame[HEADER_LENGTH..HEADER_LENGTH+len) に置かれたデータにヘッダとチェックサムを付ける. 戻り値はフレーム長
+  static int seal(byte[] frame, int len) {
+    frame[0] = 0;
+    frame[1] = 0;
+    frame[2] = (byte)0xff;
+    frame[3] = (byte)0xff;
+    frame[4] = (byte)0xff;
+    frame[5] = (byte)len;
+    frame[6] = (byte)(len >> 8);
+    frame[7] = Bytes.checkSum(frame, 5, 7);
+    frame[HEADER_LENGTH+len] = Bytes.checkSum(frame, HEADER_LENGTH, HEADER_LENGTH+len);
+    frame[HEADER_LENGTH+len+1] = 0;
+    return HEADER_LENGTH + len + 2;
+  }
+
+  //frame[0..len) の種別. DATA ならチェックサムも検査する
+  static Type typeOf(byte[] frame, int len) {
+    if(len == 6 && frame[0] == 0 && frame[1] == 0 && frame[2] == (byte)0xff
+            && frame[3] == 0 && frame[4] == (byte)0xff && frame[5] == 0) return Type.ACK;
+    if(len == 5 && frame[0] == 0 && frame[1] == 0 && frame[2] == (byte)0xff
+            && frame[3] == (byte)0xff && frame[4] == (byte)0xff) return Type.ERR;
+    if(len < 5 || frame[3] != (byte)0xff || frame[4] != (byte)0xff) return Type.UNKNOWN;
+    if(len < HEADER_LENGTH || Bytes.checkSum(frame, 5, 7+1) != 0) {
+      throw new IllegalStateException("length checksum error");
+    }
+    int dataLen = dataLength(frame);
+    if(len < HEADER_LENGTH+dataLen+1 || Bytes.checkSum(frame, 8, 8+dataLen+1) != 0) {
+      throw new IllegalStateException("data checksum error");
     }
-    return new Frame(frame, type);
+    return Type.DATA;
   }
+
+  static int dataLength(byte[] frame) {
+    return Bytes.getShortInLittleEndianFrom(frame, 5) & 0xffff;
+  }
+
   private Frame(byte[] frame, Type type) {
     this.frame = frame;
     this.type = type;
@@ -59,67 +78,43 @@ class Frame {
     return type == Type.DATA;
   }
   byte[] getData() {
-    int len = Bytes.getShortInLittleEndianFrom(frame, 5);
-    return Arrays.copyOfRange(frame, 8, 8+len);
+    return Arrays.copyOfRange(frame, HEADER_LENGTH, HEADER_LENGTH+dataLength(frame));
   }
 }
 
-class Transport implements AutoCloseable {
-  private final UsbDeviceConnection con;
-  private final UsbEndpoint in, out;
-  private Logger log;
-
-  Transport(UsbManager manager, UsbDevice device) throws IOException {
-    con = manager.openDevice(device);
-    if(con == null) throw new IOException("Connection is null");
-
-    UsbInterface usbInterface = device.getInterface(0);
-    if(!con.claimInterface(usbInterface, true)) {
-      con.close();
-      throw new IOException("claimInterface is false");
-    }
-
-    UsbEndpoint in = null, out = null;
-    for(int i=0; i<usbInterface.getEndpointCount(); i++) {
-      UsbEndpoint ep = usbInterface.getEndpoint(i);
-      if(ep.getType() != UsbConstants.USB_ENDPOINT_XFER_BULK) continue;
-      if(ep.getDirection() == UsbConstants.USB_DIR_IN) {
-        in = ep;
-      } else if (ep.getDirection() == UsbConstants.USB_DIR_OUT) {
-        out = ep;
-      }
-    }
-    this.in = in;
-    this.out = out;
-  }
-
-  void setLogger(Logger log) {
-    this.log = log;
-  }
-
-  void write(byte[] bytes) throws IOException {
-    if(log != null) log.debug(">>>> " + Bytes.toString(bytes));
-    if(con.bulkTransfer(out, bytes, bytes.length, 100) != bytes.length) throw new IOException("send error");
+interface Transport extends AutoCloseable {
+  void setLogger(Logger log);
+  void write(byte[] bytes) throws IOException;
+  default void write(byte[] bytes, int length) throws IOException {
+    write(Arrays.copyOf(bytes, length));
   }
-
-  byte[] read() throws IOException {
+  default byte[] read() throws IOException {
     return read(100);
   }
-  byte[] read(int timeout) throws IOException {
-    byte[] buffer = new byte[256+11];
-    int len = con.bulkTransfer(in, buffer, buffer.length, timeout); //timeout=[ms]
-    if(len < 0) throw new IOException("receive error: len=" + len);
-    if(log != null) log.debug("<<<< " + Bytes.toString(buffer, 0, len));
-    return Arrays.copyOfRange(buffer, 0, len);
+  byte[] read(int timeout) throws IOException;
+  //buffer に直接受信する. 戻り値は受信長
+  default int read(byte[] buffer, int timeout) throws IOException {
+    return read(buffer, 0, timeout);
+  }
+  //buffer[offset..] に直接受信する. 戻り値は受信長
+  default int read(byte[] buffer, int offset, int timeout) throws IOException {
+    byte[] bytes = read(timeout);
+    if(bytes.length > buffer.length - offset) throw new IOException("receive error: len=" + bytes.length);
+    System.arraycopy(bytes, 0, buffer, offset, bytes.length);
+    return bytes.length;
   }
-
   @Override
-  public void close() {
-    if(con != null) con.close();
+  void close();
+}
+
+//カードとの RF のやり取りの失敗. リーダ(USB/チップ)は正常なので開き直さなくて良い
+class CardException extends IOException {
+  CardException(String message) {
+    super(message);
   }
 }
 
-class CommunicationException extends IOException {
+class CommunicationException extends CardException {
   private static final Map<Integer,String> map = new HashMap<>();
   static {
     map.put(0x00000000, "NO_ERROR");
@@ -136,12 +131,16 @@ class CommunicationException extends IOException {
     map.put(0x00000800, "TRANSMIT_TIMEOUT_ERROR");
     map.put(0x80000000, "RECEIVE_LENGTH_ERROR");
   }
+  static final int RECEIVE_TIMEOUT_ERROR = 0x00000080;
+  static final int CRC_ERROR = 0x00000004;
+  static final int COLLISION_ERROR = 0x00000008;
+
   final int status;
   CommunicationException(int status) {
     super(map.getOrDefault(status, String.format("0x%08x", status)));
     this.status = status;
   }
-  boolean isReceiveTimeout() { return status == 0x00000080; }
+  boolean isReceiveTimeout() { return status == RECEIVE_TIMEOUT_ERROR; }
 }
 
 class StatusException extends IOException {
@@ -159,10 +158,51 @@ class StatusException extends IOException {
   }
 }
 
+//USB で受けたフレームのチェックサム誤り(や扱えない形式). 送り直せば直ることが多い
+class ChecksumException extends IOException {
+  ChecksumException(String message) {
+    super(message);
+  }
+}
+
 interface Logger {
+  enum Level { DEBUG, INFO, ERROR, NONE }
+
+  //何も出さない. テストやベンチマーク用
+  Logger NONE = new Logger() {
+    @Override
+    public void log(String s) {}
+    @Override
+    public void debug(String s) {}
+    @Override
+    public void error(String s) {}
+    @Override
+    public Level level() {
+      return Level.NONE;
+    }
+  };
+
   void log(String s);
   void debug(String s);
   void error(String s);
+
+  default Level level() {
+    return Level.DEBUG;
+  }
+  default boolean isEnabled(Level level) {
+    return level != Level.NONE && level.compareTo(level()) >= 0;
+  }
+
+  //無効なレベルでは文字列を組み立てない
+  default void log(Supplier<String> s) {
+    if(isEnabled(Level.INFO)) log(s.get());
+  }
+  default void debug(Supplier<String> s) {
+    if(isEnabled(Level.DEBUG)) debug(s.get());
+  }
+  default void error(Supplier<String> s) {
+    if(isEnabled(Level.ERROR)) error(s.get());
+  }
 }
 
 class Chipset implements AutoCloseable {
@@ -186,19 +226,48 @@ class Chipset implements AutoCloseable {
 
   private final Transport transport;
   private final Logger log;
+  private final RetryPolicy retry;
+
+  //送受信フレームは使い回す. command() で得たバッファに引数を書いて transceive() する
+  //受信は FrameReader がフレームに切り出して rx の先頭に置く
+  private final byte[] tx = new byte[Frame.MAX_LENGTH];
+  private final FrameReader reader = new FrameReader(Frame.MAX_LENGTH);
+  private byte[] rx = reader.buffer();
+  private final ByteBuffer request = ByteBuffer.wrap(tx).order(ByteOrder.LITTLE_ENDIAN);
+  private ByteBuffer response = ByteBuffer.wrap(rx).order(ByteOrder.LITTLE_ENDIAN);
+  private CMD pending;
+  private final ChipsetStats stats = new ChipsetStats();
+  private int rfTimeout; //[ms] 実行中の InCommRF の RF 待ち時間
+
+  //USB の受信タイムアウトは観測したチップの応答時間の高位パーセンタイル+余裕にする
+  static final int READ_TIMEOUT = 100, MIN_READ_TIMEOUT = 10, READ_TIMEOUT_MARGIN = 5; //[ms]
+  private static final int DRAIN_TIMEOUT = 2, DRAIN_TRANSFERS = 8; //[ms] 再同期で読み捨てる時の待ち時間と回数
+  private final long[] latencies = new long[64], sorted = new long[64]; //[ns] 直近の応答時間
+  private int latencyCount;
+  private int readTimeout = READ_TIMEOUT;
+
+  //チップに最後に設定した値. 同じなら送らない. null/-1 は不明
+  private String rfSend, rfRecv;
+  private Boolean rfOn;
+  private final int[] protocol = new int[0x14];
 
   Chipset(Transport transport, Logger log) throws IOException {
+    this(transport, log, new RetryPolicy());
+  }
+  Chipset(Transport transport, Logger log, RetryPolicy retry) throws IOException {
     this.transport = transport;
     this.log = log;
+    this.retry = retry;
 
     transport.setLogger(log);
+    invalidate();
 
     transport.write(Chipset.ACK); //通信の途中だったかも知れないので送ってみる
     try {
       //タイムアウトが発生するまで
       while(true) {
         byte[] data = transport.read(10); //何か残っているなら捨てる
-        log.debug(String.format("cleared garbage %s", Bytes.toString(data)));
+        log.debug(() -> String.format("cleared garbage %s", Bytes.toString(data)));
       }
     } catch(IOException ignore) {
       //no process
@@ -210,61 +279,247 @@ class Chipset implements AutoCloseable {
     switch_rf(false);
   }
 
+  //RF を切るのはできればで良い. 壊れたリーダやブレーカーが開いていても transport は必ず閉じる
   @Override
   public void close() throws IOException {
-    switch_rf(false);
-    transport.write(Chipset.ACK);
-    transport.close();
+    try {
+      switch_rf(false);
+      transport.write(Chipset.ACK);
+    } catch(IOException e) {
+      log.debug(() -> "close: " + e.getMessage());
+    } finally {
+      transport.close();
+    }
+  }
+
+  //現在の USB 受信タイムアウト [ms]
+  int getReadTimeout() {
+    return readTimeout;
+  }
+
+  private void record(long latency) {
+    latencies[latencyCount++ % latencies.length] = latency;
+    if(latencyCount < latencies.length || latencyCount % 16 != 0) return;
+    System.arraycopy(latencies, 0, sorted, 0, sorted.length);
+    Arrays.sort(sorted);
+    long p95 = sorted[sorted.length * 95 / 100];
+    int timeout = (int)((p95 + 999999) / 1000000) + READ_TIMEOUT_MARGIN;
+    readTimeout = Math.max(MIN_READ_TIMEOUT, Math.min(READ_TIMEOUT, timeout));
+    if(latencyCount >= latencies.length * 2) latencyCount -= latencies.length; //溢れ防止
+  }
+
+  //チップ側の設定を不明扱いにし, 次回は全て送り直す. リセット後やエラー後に呼ぶ
+  void invalidate() {
+    rfSend = rfRecv = null;
+    rfOn = null;
+    Arrays.fill(protocol, -1);
   }
 
   byte[] send_command(CMD cmd, byte[] cmd_data) throws IOException {
-    byte[] req = Bytes.join(Bytes.of(0xd6, cmd.code), cmd_data);
-    transport.write(Frame.createRequest(req).frame);
+    ByteBuffer res = transceive(command(cmd).put(cmd_data));
+    if(res == null) return null;
+    byte[] data = new byte[res.remaining()];
+    res.get(data);
+    return data;
+  }
+
+  //cmd の引数を書き込む為のバッファ (position は引数の先頭)
+  ByteBuffer command(CMD cmd) {
+    pending = cmd;
+    tx[Frame.HEADER_LENGTH] = (byte)0xd6;
+    tx[Frame.HEADER_LENGTH+1] = cmd.code;
+    request.clear().position(Frame.HEADER_LENGTH+2);
+    request.limit(tx.length-2);
+    return request;
+  }
+
+  //command() で組み立てた要求を送り, 応答データ(D7 xx の後)を指すバッファを返す. 次のコマンドまで有効
+  //失敗したら retry の範囲で同期を取り直して送り直す
+  ByteBuffer transceive(ByteBuffer req) throws IOException {
+    if(req != request || pending == null) throw new IllegalStateException("command() not called");
+    CMD cmd = pending;
+    pending = null;
+    retry.check();
+    int len = Frame.seal(tx, req.position() - Frame.HEADER_LENGTH);
+    long start = System.nanoTime();
+    for(int attempt=0; ; attempt++) {
+      try {
+        if(attempt > 0) {
+          stats.recordRetry();
+          resync();
+        }
+        int timeout = Math.max(MIN_READ_TIMEOUT, retry.readTimeout(attempt, start, readTimeout));
+        ByteBuffer res = exchange(cmd, tx, len, timeout);
+        if(res != null) {
+          retry.onSuccess();
+          return res;
+        }
+        stats.recordNullResponse();
+        invalidate(); //チップの状態が分からなくなった
+        if(!retry.canRetry(attempt, start)) {
+          retry.onFailure();
+          return null;
+        }
+      } catch(IOException | RuntimeException e) {
+        invalidate();
+        reader.clear();
+        if(!(e instanceof IOException) || !retry.canRetry(attempt, start)) {
+          retry.onFailure();
+          readTimeout = READ_TIMEOUT; //諦めたら計測し直す
+          latencyCount = 0;
+          throw e;
+        }
+      }
+    }
+  }
+
+  //ACK で実行中のコマンドを取り消し, 既に届いている分だけ読み捨てる. 開き直すより遥かに速い
+  private void resync() throws IOException {
+    reader.clear();
+    transport.write(Chipset.ACK);
+    try {
+      for(int i=0; i<DRAIN_TRANSFERS; i++) {
+        int n = transport.read(rx, 0, DRAIN_TIMEOUT);
+        log.debug(() -> String.format("resync: drained %s", Bytes.toString(rx, 0, n)));
+      }
+    } catch(IOException ignore) {
+      //もう何も来ない
+    }
+    reader.clear();
+  }
+
+  //前もって組み立てて封をしたコマンドフレーム. 送信は書き込み 1 回で済む
+  static final class Prepared {
+    final CMD cmd;
+    final byte[] frame;
 
-    Frame ack = Frame.createResponce(transport.read());
-    if(!ack.isAck()) {
-      log.error("expected ACK but got " + ack.type);
+    Prepared(CMD cmd, byte[] data) {
+      this.cmd = cmd;
+      frame = new byte[Frame.HEADER_LENGTH + 2 + data.length + 2];
+      frame[Frame.HEADER_LENGTH] = (byte)0xd6;
+      frame[Frame.HEADER_LENGTH+1] = cmd.code;
+      System.arraycopy(data, 0, frame, Frame.HEADER_LENGTH+2, data.length);
+      Frame.seal(frame, 2 + data.length);
+    }
+  }
+
+  //prepared を送り, 応答データを指すバッファを返す. 応答時間が大事なので再送はしない
+  ByteBuffer transceive(Prepared prepared) throws IOException {
+    if(pending != null) throw new IllegalStateException("command() pending");
+    try {
+      ByteBuffer res = exchange(prepared.cmd, prepared.frame, prepared.frame.length, readTimeout);
+      if(res == null) {
+        stats.recordNullResponse();
+        invalidate();
+      }
+      return res;
+    } catch(IOException | RuntimeException e) {
+      invalidate();
+      reader.clear();
+      throw e;
+    }
+  }
+
+  //timeout[ms] は ACK と応答それぞれの USB の受信待ち. RF を待つコマンドの応答はその分を足す
+  private ByteBuffer exchange(CMD cmd, byte[] frame, int len, int timeout) throws IOException {
+    int wait = cmd == CMD.InCommRF || cmd == CMD.TgCommRF ? rfTimeout : 0;
+    long start = System.nanoTime();
+    transport.write(frame, len);
+
+    Frame.Type type = typeOf(receive(timeout));
+    if(type != Frame.Type.ACK) {
+      log.error("expected ACK but got " + type);
       return null;
     }
-    Frame rsp = Frame.createResponce(transport.read());
-    if(!rsp.isData()) {
-      log.error("expected DATA but got " + rsp.type);
+    long ack = System.nanoTime();
+    stats.recordAck(cmd, len, ack - start);
+    int n = receive(timeout + wait);
+    long end = System.nanoTime();
+    stats.recordResponse(cmd, n, end - ack);
+    type = typeOf(n);
+    if(wait == 0) { //RF を待つコマンドは応答時間が読めないので ACK だけ
+      record(end - ack);
+    }
+    record(ack - start);
+    if(type != Frame.Type.DATA) {
+      log.error("expected DATA but got " + type);
       return null;
     }
-    byte[] data = rsp.getData();
-    if(!Bytes.equals(data, 0, 0xd7, cmd.code+1)) {
-      log.error(String.format("expected rsp code D7%02X but %02X%02X",
-              cmd.code+1, data[0]&0xff, data[1]&0xff));
+    int limit = Frame.HEADER_LENGTH + Frame.dataLength(rx);
+    if(rx[Frame.HEADER_LENGTH] != (byte)0xd7 || rx[Frame.HEADER_LENGTH+1] != (byte)(cmd.code+1)) {
+      log.error(() -> String.format("expected rsp code D7%02X but %02X%02X",
+              cmd.code+1, rx[Frame.HEADER_LENGTH]&0xff, rx[Frame.HEADER_LENGTH+1]&0xff));
       return null;
     }
-    return Arrays.copyOfRange(data, 2, data.length);
+    response.clear().position(Frame.HEADER_LENGTH+2);
+    response.limit(limit);
+    return response;
+  }
+
+  private int receive(int timeout) throws IOException {
+    int n;
+    try {
+      n = reader.next(transport, timeout);
+    } catch(IllegalStateException e) { //長さのチェックサム誤りや通常フレーム
+      stats.recordChecksumError();
+      throw new ChecksumException(e.getMessage());
+    }
+    if(rx != reader.buffer()) { //大きなフレームでバッファが広がった
+      rx = reader.buffer();
+      response = ByteBuffer.wrap(rx).order(ByteOrder.LITTLE_ENDIAN);
+    }
+    return n;
+  }
+
+  private Frame.Type typeOf(int len) throws ChecksumException {
+    try {
+      return Frame.typeOf(rx, len);
+    } catch(IllegalStateException e) { //チェックサム誤り
+      stats.recordChecksumError();
+      throw new ChecksumException(e.getMessage());
+    }
+  }
+
+  private StatusException statusError(int errno) {
+    stats.recordStatusError(errno);
+    return new StatusException(errno);
+  }
+
+  ChipsetStats getStats() {
+    return stats;
   }
 
   void set_command_type(int command_type) throws IOException {
     byte[] res = send_command(CMD.SetCommandType, Bytes.of(command_type));
     if(res == null) return;
-    if(res[0] != 0) throw new StatusException(res[0]);
+    if(res[0] != 0) throw statusError(res[0]);
   }
 
   int get_firmware_version(Integer option) throws IOException {
     if(option != null && option != 60 && option != 61 && option != 0x80) throw new IllegalArgumentException("option=" + option);
     byte[] res = send_command(CMD.GetFirmwareVersion, option == null ? new byte[0] : Bytes.of(option));
     if(res == null) return 0;
-    Log.d("", String.format("firmware version %x.%02x", res[1], res[0]));
+    log.debug(() -> String.format("firmware version %x.%02x", res[1], res[0]));
     return Bytes.getShortInLittleEndianFrom(res, 0);
   }
 
   int get_pd_data_version() throws IOException {
     byte[] res = send_command(CMD.GetPDDataVersion, new byte[0]);
     if(res == null) return 0;
-    Log.d("", String.format("package data format %x.%02x", res[1], res[0]));
+    log.debug(() -> String.format("package data format %x.%02x", res[1], res[0]));
     return Bytes.getShortInLittleEndianFrom(res, 0);
   }
 
   void switch_rf(boolean on) throws IOException {
+    if(rfOn != null && rfOn == on) return;
     byte[] res = send_command(CMD.SwitchRF, Bytes.of(on?1:0));
     if(res == null) return;
-    if(res[0] != 0) throw new StatusException(res[0]);
+    if(res[0] != 0) {
+      invalidate();
+      throw statusError(res[0]);
+    }
+    rfOn = on;
+    if(!on) rfSend = rfRecv = null; //RF を入れ直すには InSetRF を送り直す
   }
 
   private static final Map<String,byte[]> settings = new HashMap<>();
@@ -285,14 +540,18 @@ class Chipset implements AutoCloseable {
   void in_set_rf(String brty_send, String brty_recv) throws IOException {
     byte[] send = settings.get(brty_send);
     if(send == null) throw new IllegalArgumentException("brty_send=" + brty_send);
-    byte[] recv = settings.get(brty_recv == null ? brty_send : brty_recv);
+    if(brty_recv == null) brty_recv = brty_send;
+    byte[] recv = settings.get(brty_recv);
     if(recv == null) throw new IllegalArgumentException("brty_recv=" + brty_recv);
-    byte[] cmd = new byte[4];
-    System.arraycopy(send, 0, cmd, 0, 2);
-    System.arraycopy(recv, 2, cmd, 2, 2);
-    byte[] res = send_command(CMD.InSetRF, cmd);
+    if(brty_send.equals(rfSend) && brty_recv.equals(rfRecv)) return;
+    ByteBuffer res = transceive(command(CMD.InSetRF).put(send, 0, 2).put(recv, 2, 2));
     if(res == null) return;
-    if(res[0] != 0) throw new StatusException(res[0]);
+    if(res.get(res.position()) != 0) {
+      invalidate();
+      throw statusError(res.get(res.position()));
+    }
+    rfSend = brty_send;
+    rfRecv = brty_recv;
   }
 
   static class InsetProtocolParams {
@@ -319,18 +578,28 @@ class Chipset implements AutoCloseable {
     InsetProtocolParams rfca(int v) { return put(0x12, v); }
     InsetProtocolParams guard_time(int v) { return put(0x13, v); }
 
+    private byte[] encoded; //toByteArray() の結果. put で破棄
+
     private InsetProtocolParams put(int key, int value) {
       map.put((byte)key, (byte)value);
+      encoded = null;
       return this;
     }
 
     byte[] toByteArray() {
-      ByteArrayOutputStream baos = new ByteArrayOutputStream();
-      for(Map.Entry<Byte,Byte> entry : map.entrySet()) { //キー昇順
-        baos.write(entry.getKey());
-        baos.write(entry.getValue());
+      return encoded().clone();
+    }
+
+    private byte[] encoded() {
+      if(encoded == null) {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        for(Map.Entry<Byte,Byte> entry : map.entrySet()) { //キー昇順
+          baos.write(entry.getKey());
+          baos.write(entry.getValue());
+        }
+        encoded = baos.toByteArray();
       }
-      return baos.toByteArray();
+      return encoded;
     }
 
     static InsetProtocolParams getDefault() {
@@ -343,19 +612,95 @@ class Chipset implements AutoCloseable {
     }
   }
 
+  //前回から変わったキーと値の組だけを送る
   void in_set_protocol(InsetProtocolParams params) throws IOException {
-    byte[] res = send_command(CMD.InSetProtocol, params.toByteArray());
+    byte[] encoded = params.encoded();
+    ByteBuffer req = command(CMD.InSetProtocol);
+    for(int i=0; i<encoded.length; i+=2) {
+      if(protocol[encoded[i]] != (encoded[i+1] & 0xff)) req.put(encoded, i, 2);
+    }
+    if(req.position() == Frame.HEADER_LENGTH+2) { //変更無し
+      pending = null;
+      return;
+    }
+    ByteBuffer res = transceive(req);
     if(res == null) return;
-    if(res[0] != 0) throw new StatusException(res[0]);
+    if(res.get(res.position()) != 0) {
+      invalidate();
+      throw statusError(res.get(res.position()));
+    }
+    for(int i=0; i<encoded.length; i+=2) protocol[encoded[i]] = encoded[i+1] & 0xff;
   }
 
   byte[] in_comm_rf(byte[] data, int timeout) throws IOException {
-    timeout = Math.min((timeout+(timeout>0?1:0)) * 10, 0xffff);
-    byte[] res = send_command(CMD.InCommRF, Bytes.join(Bytes.toLittleShort(timeout), data));
+    ByteBuffer res = in_comm_rf(data, 0, data.length, timeout);
     if(res == null) return null;
-    int status = ByteBuffer.wrap(res).order(ByteOrder.LITTLE_ENDIAN).getInt();
+    int status = res.getInt(res.position());
     if(status != 0) throw new CommunicationException(status);
-    return Arrays.copyOfRange(res, 5, res.length);
+    byte[] frame = new byte[res.remaining() - 5];
+    res.position(res.position() + 5);
+    res.get(frame);
+    return frame;
+  }
+
+  private static final Map<String,byte[]> tgSettings = new HashMap<>();
+  static {
+    tgSettings.put("106A", new byte[]{8, 11});
+    tgSettings.put("212F", new byte[]{8, 12});
+    tgSettings.put("424F", new byte[]{8, 13});
+    tgSettings.put("212A", new byte[]{8, 14});
+    tgSettings.put("424A", new byte[]{8, 15});
+  }
+
+  //ターゲット(カード)として待ち受ける方式を設定する. イニシエータ側の設定は送り直しになる
+  void tg_set_rf(String brty) throws IOException {
+    byte[] setting = tgSettings.get(brty);
+    if(setting == null) throw new IllegalArgumentException("brty=" + brty);
+    invalidate();
+    ByteBuffer res = transceive(command(CMD.TgSetRF).put(setting));
+    if(res == null) return;
+    if(res.get(res.position()) != 0) throw statusError(res.get(res.position()));
+  }
+
+  //key, value の組を並べて渡す. 0:send_timeout_time_unit 1:rf_off_error 2:continuous_receive_mode
+  void tg_set_protocol(byte[] params) throws IOException {
+    ByteBuffer res = transceive(command(CMD.TgSetProtocol).put(params));
+    if(res == null) return;
+    if(res.get(res.position()) != 0) throw statusError(res.get(res.position()));
+  }
+
+  static final int TG_COMM_RF_PARAMS = 33; //guard_time(2) send_timeout(2) mdaa(1) nfca_params(6) nfcf_params(18) mf_halted(1) arae(1) recv_timeout(2)
+
+  //transmit を送って(空なら送らずに)次のコマンドを recvTimeout[ms] 待つ TgCommRF を組み立てておく
+  static Prepared tg_comm_rf(byte[] transmit, int recvTimeout) {
+    ByteBuffer data = ByteBuffer.allocate(TG_COMM_RF_PARAMS + transmit.length).order(ByteOrder.LITTLE_ENDIAN);
+    data.putShort((short)0).putShort((short)0xffff); //guard_time, send_timeout
+    data.position(TG_COMM_RF_PARAMS - 2);
+    data.putShort((short)Math.min(recvTimeout, 0xffff)).put(transmit);
+    return new Prepared(CMD.TgCommRF, data.array());
+  }
+
+  //応答をコピーせずに返す. 先頭は通信方式(1) 不明(2) status(4, LE) で, 8 バイト目以降が受信フレーム
+  ByteBuffer tg_comm_rf(Prepared prepared, int recvTimeout) throws IOException {
+    if(prepared.cmd != CMD.TgCommRF) throw new IllegalArgumentException("cmd=" + prepared.cmd);
+    rfTimeout = recvTimeout + 1;
+    ByteBuffer res = transceive(prepared);
+    if(res == null) return null;
+    int status = res.getInt(res.position() + 3);
+    if(status != 0) stats.recordCommunicationError(status);
+    return res;
+  }
+
+  //応答をコピーせずに返す. 先頭 4 バイトが status (LE), 5 バイト目以降が受信フレーム
+  ByteBuffer in_comm_rf(byte[] data, int offset, int length, int timeout) throws IOException {
+    rfTimeout = timeout + (timeout>0?1:0);
+    timeout = Math.min(rfTimeout * 10, 0xffff);
+    ByteBuffer res = transceive(command(CMD.InCommRF).putShort((short)timeout).put(data, offset, length));
+    if(res == null) return null;
+    rfOn = true; //InCommRF は RF を自動で ON にする
+    int status = res.getInt(res.position());
+    if(status != 0) stats.recordCommunicationError(status);
+    return res;
   }
 }
 
@@ -363,13 +708,24 @@ public class Device implements AutoCloseable {
   private final Chipset chipset;
   private final Logger log;
   final String chipsetName;
+  private BlockCache blockCache; //null ならカードの内容を毎回読む
 
   Device(Transport transport, Logger logger) throws IOException {
-    this.chipset = new Chipset(transport, logger);
+    this(transport, logger, null);
+  }
+  //chipsetName が分かっていれば(同じリーダの再接続など)ファームウェアの問い合わせを省く
+  Device(Transport transport, Logger logger, String chipsetName) throws IOException {
+    this(transport, logger, chipsetName, new RetryPolicy());
+  }
+  Device(Transport transport, Logger logger, String chipsetName, RetryPolicy retry) throws IOException {
+    this.chipset = new Chipset(transport, logger, retry);
     this.log = logger;
 
-    int firmver = chipset.get_firmware_version(null);
-    chipsetName = String.format("NFC Port-100 v%x.%02x", firmver>>8, firmver&0xff);
+    if(chipsetName == null) {
+      int firmver = chipset.get_firmware_version(null);
+      chipsetName = String.format("NFC Port-100 v%x.%02x", firmver>>8, firmver&0xff);
+    }
+    this.chipsetName = chipsetName;
     log.log(chipsetName);
   }
 
@@ -378,22 +734,292 @@ public class Device implements AutoCloseable {
     chipset.close();
   }
 
+  ChipsetStats getStats() {
+    return chipset.getStats();
+  }
+
+  //FelicaTag はここに有るブロックを読まずに返す. リーダ間で共有して良い
+  Device setBlockCache(BlockCache blockCache) {
+    this.blockCache = blockCache;
+    return this;
+  }
+  BlockCache getBlockCache() {
+    return blockCache;
+  }
+
+  //RF を切る. 次の sense/exchange で自動的に入る
+  void mute() throws IOException {
+    chipset.switch_rf(false);
+  }
+
+  private static final byte[] SENSF_REQ = Bytes.of(6, 0, 0xff, 0xff, 1, 0); //先頭は長さ
+  private static final Chipset.InsetProtocolParams TTF_PROTOCOL = Chipset.InsetProtocolParams.getDefault().initial_guard_time(28);
+
   //Sense for a Type F Target is supported for 212 and 424 kbps.
   byte[] sense_ttf(String target) throws IOException {
+    return sense_ttf(target, 10);
+  }
+  byte[] sense_ttf(String target, int timeout) throws IOException {
     log.debug("polling for NFC-F technology");
 
     chipset.in_set_rf(target);
-    chipset.in_set_protocol(Chipset.InsetProtocolParams.getDefault().initial_guard_time(28));
+    chipset.in_set_protocol(TTF_PROTOCOL);
 
-    byte[] sensf_req = Bytes.of(0, 0xff, 0xff, 1, 0);
-    log.debug(String.format("send SENSF_REQ %s", Bytes.toString(sensf_req)));
+    log.debug(() -> String.format("send SENSF_REQ %s", Bytes.toString(SENSF_REQ, 1, SENSF_REQ.length)));
+
+    ByteBuffer res = chipset.in_comm_rf(SENSF_REQ, 0, SENSF_REQ.length, timeout);
+    if(res == null) return null;
+    int status = res.getInt(res.position());
+    if(status != 0) {
+      if(status != CommunicationException.RECEIVE_TIMEOUT_ERROR) log.debug(() -> new CommunicationException(status).getMessage());
+      return null;
+    }
+    byte[] rx = res.array();
+    int frame = res.position() + 5, len = res.limit() - frame;
+    if(18 <= len && rx[frame] == len && rx[frame+1] == 1) {
+      log.debug(() -> String.format("rcvd SENSF_RES %s", Bytes.toString(rx, frame+1, res.limit())));
+      return Arrays.copyOfRange(rx, frame+1, res.limit());
+    }
+    return null;
+  }
+
+  //PMm のバイト位置. 各バイトはそのコマンド群の最大応答時間パラメータ
+  static final int PMM_REQUEST_SERVICE = 2, PMM_REQUEST_RESPONSE = 3, PMM_AUTHENTICATION = 4,
+          PMM_READ = 5, PMM_WRITE = 6, PMM_OTHER = 7;
+
+  //PMm から求めた最大応答時間 [ms]. T = T0 * ((B+1) * n + (A+1)) * 4^E, n はブロック数/ノード数
+  static double ttf_response_time(byte[] pmm, int index, int n) {
+    int p = pmm[index] & 0xff;
+    int a = p & 7, b = p >> 3 & 7, e = p >> 6;
+    return 0.3020 * ((b + 1) * n + (a + 1)) * (1 << (2 * e));
+  }
+
+  //ttf_response_time を in_comm_rf に渡せる ms に切り上げる
+  static int ttf_timeout(byte[] pmm, int index, int n) {
+    return (int)Math.ceil(ttf_response_time(pmm, index, n));
+  }
+
+  //Type F のコマンド(長さバイトを除く)を送り, 応答(長さバイトを除く)を返す
+  byte[] exchange_ttf(String target, byte[] cmd, int timeout) throws IOException {
+    chipset.in_set_rf(target);
+    chipset.in_set_protocol(TTF_PROTOCOL);
+    byte[] frame = chipset.in_comm_rf(Bytes.join(Bytes.of(cmd.length+1), cmd), timeout);
+    if(frame == null) return null;
+    if(frame.length < 2 || (frame[0] & 0xff) != frame.length) {
+      throw new CardException(String.format("invalid frame %s", Bytes.toString(frame)));
+    }
+    return Arrays.copyOfRange(frame, 1, frame.length);
+  }
+
+  //send_timeout_time_unit=1, rf_off_error=0 (RF が切れても待ち続ける), continuous_receive_mode=7
+  private static final byte[] TG_PROTOCOL = Bytes.of(0, 1, 1, 0, 2, 7);
+
+  //target の FeliCa カードとして振る舞う. リーダのコマンドに target の表で答え, timeout[ms] 何も来なくなったら戻る.
+  //応答は組み立て済みなので, 1 コマンドあたり表引きと書き込み 1 回で済む. 答えた数を返す
+  int listen_ttf(FelicaTarget target, int timeout) throws IOException {
+    log.debug("listening as NFC-F target");
+    chipset.tg_set_rf("212F");
+    chipset.tg_set_protocol(TG_PROTOCOL);
+    target.prepare(timeout);
+
+    int answered = 0;
+    Chipset.Prepared next = target.listen();
+    while(true) {
+      ByteBuffer res = chipset.tg_comm_rf(next, timeout);
+      long received = System.nanoTime();
+      if(res == null) return answered;
+      int status = res.getInt(res.position() + 3);
+      if(status != 0) {
+        if(status != CommunicationException.RECEIVE_TIMEOUT_ERROR) log.debug(() -> new CommunicationException(status).getMessage());
+        return answered;
+      }
+      int offset = res.position() + 7;
+      next = target.answer(res.array(), offset, res.limit() - offset, received);
+      if(next == null) { //知らないコマンドには答えない
+        log.debug(() -> String.format("no answer for %s", Bytes.toString(res.array(), offset, res.limit())));
+        next = target.listen();
+      } else {
+        answered++;
+      }
+    }
+  }
+
+  private static final Chipset.InsetProtocolParams TTF_MULTI_PROTOCOL = Chipset.InsetProtocolParams.getDefault().initial_guard_time(28)
+          .multi_card(1).continuous_receive_mode(1).min_len_for_crm(18);
+
+  //複数スロットの SENSF_REQ を送り, 時間内に受信した SENSF_RES を全て返す (各要素は sense_ttf の戻り値と同じ形式)
+  //衝突して取りこぼしが疑われる場合は attempts 回まで送り直して集める. slots は 1,2,4,8,16
+  List<byte[]> sense_ttf_multi(String target, int slots, int attempts) throws IOException {
+    if(slots != 1 && slots != 2 && slots != 4 && slots != 8 && slots != 16) throw new IllegalArgumentException("slots=" + slots);
+    log.debug(() -> "polling for NFC-F technology (" + slots + " slots)");
+
+    chipset.in_set_rf(target);
+    chipset.in_set_protocol(TTF_MULTI_PROTOCOL);
+
+    byte[] sensf_req = Bytes.of(6, 0, 0xff, 0xff, 1, slots-1);
+    int timeout = (int)Math.ceil(2.417 + slots * 1.208); //[ms] 最終スロットの終わりまで
+    Map<Long,byte[]> found = new LinkedHashMap<>();
+    for(int i=0; i<attempts; i++) {
+      ByteBuffer res = chipset.in_comm_rf(sensf_req, 0, sensf_req.length, timeout);
+      if(res == null) break;
+      int status = res.getInt(res.position());
+      if(status == CommunicationException.RECEIVE_TIMEOUT_ERROR) break; //誰も居ない
+      if(status != 0) log.debug(() -> new CommunicationException(status).getMessage()); //受信できた分は使う
+
+      byte[] rx = res.array();
+      for(int frame = res.position() + 5; frame < res.limit(); ) {
+        int len = rx[frame] & 0xff;
+        if(len < 18 || frame + len > res.limit() || rx[frame+1] != 1) break;
+        found.putIfAbsent(Bytes.toLong(rx, frame+2), Arrays.copyOfRange(rx, frame+1, frame+len));
+        frame += len;
+      }
+      //壊れずに受けられたなら応えたカードは全て見えている. 同じスロットで壊れた(CRC_ERROR)時だけ, 選び直すスロットに期待して送り直す
+      if((status & (CommunicationException.CRC_ERROR | CommunicationException.COLLISION_ERROR)) == 0) break;
+    }
+    if(log.isEnabled(Logger.Level.DEBUG)) {
+      for(byte[] sensf_res : found.values()) log.debug(String.format("rcvd SENSF_RES %s", Bytes.toString(sensf_res)));
+    }
+    return new ArrayList<>(found.values());
+  }
+
+  private static final byte[] SENS_REQ = Bytes.of(0x26);
+  private static final Chipset.InsetProtocolParams TTA_SENS_PROTOCOL = Chipset.InsetProtocolParams.getDefault()
+          .initial_guard_time(6).add_crc(0).check_crc(0).check_parity(1).last_byte_bit_count(7);
+  //SEL_REQ の CRC_A も自前で付けて確かめるので, SDD と SEL, 全てのカスケードレベルで同じ設定のまま送れる
+  private static final Chipset.InsetProtocolParams TTA_SDD_PROTOCOL = Chipset.InsetProtocolParams.getDefault()
+          .initial_guard_time(6).add_crc(0).check_crc(0).add_parity(1).check_parity(1);
+  //衝突した時に確定したビットだけを送る設定. 添字は最後のバイトのビット数(1..7). バイト単位なら TTA_SDD_PROTOCOL のまま
+  private static final Chipset.InsetProtocolParams[] TTA_ANTICOLL_PROTOCOL = new Chipset.InsetProtocolParams[8];
+  static {
+    for(int bits=1; bits<8; bits++) {
+      TTA_ANTICOLL_PROTOCOL[bits] = Chipset.InsetProtocolParams.getDefault()
+              .initial_guard_time(6).add_crc(0).check_crc(0).add_parity(1).check_parity(1)
+              .bitwise_anticoll(1).last_byte_bit_count(bits);
+    }
+  }
+
+  //Sense for a Type A Target. 戻り値は SENS_RES(2) SEL_RES(1) UID(4/7/10)
+  //カードが 1 枚なら USB の往復は SENS_REQ, 設定 1 回, カスケードレベル毎に SDD_REQ と SEL_REQ だけ
+  byte[] sense_tta(String target, int timeout) throws IOException {
+    log.debug("polling for NFC-A technology");
+
+    chipset.in_set_rf(target);
+    chipset.in_set_protocol(TTA_SENS_PROTOCOL);
 
     try {
-      byte[] frame = chipset.in_comm_rf(Bytes.join(Bytes.of(sensf_req.length+1), sensf_req), 10);
+      byte[] sens_res = chipset.in_comm_rf(SENS_REQ, timeout);
+      if(sens_res == null || sens_res.length != 2) return null;
+      log.debug(() -> String.format("rcvd SENS_RES %s", Bytes.toString(sens_res)));
+      if((sens_res[0] & 0x1f) == 0) {
+        log.debug("Type 1 Tag is not supported");
+        return null;
+      }
+
+      ByteArrayOutputStream uid = new ByteArrayOutputStream();
+      byte sel_res = 0;
+      byte[] sel_req = new byte[9];
+      for(int sel_cmd : new int[]{0x93, 0x95, 0x97}) {
+        byte[] sdd_res = tta_sdd(sel_cmd, timeout);
+        if(sdd_res == null) return null;
+        chipset.in_set_protocol(TTA_SDD_PROTOCOL); //衝突の解決で変えていたら戻す
+        sel_req[0] = (byte)sel_cmd;
+        sel_req[1] = 0x70;
+        System.arraycopy(sdd_res, 0, sel_req, 2, 5);
+        int crc = Bytes.crcA(sel_req, 0, 7);
+        sel_req[7] = (byte)crc;
+        sel_req[8] = (byte)(crc >> 8);
+        byte[] sel = chipset.in_comm_rf(sel_req, timeout);
+        if(sel == null || sel.length != 3) return null;
+        if(Bytes.crcA(sel, 0, 1) != ((sel[1] & 0xff) | (sel[2] & 0xff) << 8)) {
+          log.debug(() -> String.format("CRC error %s", Bytes.toString(sel)));
+          return null;
+        }
+        sel_res = sel[0];
+        if((sel_res & 0x04) != 0) { //UID 未完
+          uid.write(sdd_res, 1, 3);
+        } else {
+          uid.write(sdd_res, 0, 4);
+          break;
+        }
+      }
+      byte[] res = Bytes.join(Bytes.of(sens_res[0] & 0xff, sens_res[1] & 0xff, sel_res & 0xff), uid.toByteArray());
+      log.debug(() -> String.format("rcvd UID %s", Bytes.toString(res, 3, res.length)));
+      return res;
+    } catch(CommunicationException e) {
+      if(!e.isReceiveTimeout()) log.debug(e.getMessage());
+    }
+    return null;
+  }
 
-      if(18 <= frame.length && frame[0] == frame.length && frame[1] == 1) {
-        log.debug(String.format("rcvd SENSF_RES %s", Bytes.toString(frame, 1, frame.length)));
-        return Arrays.copyOfRange(frame, 1, frame.length);
+  //sel_cmd のカスケードレベルの UID 片 4 バイト + BCC. 衝突したらチップが返した衝突位置の手前までを確定し,
+  //衝突したビットを 1 と決めて送り直す(応答が無ければ 0). 衝突 1 回につき USB の往復は 1 回で,
+  //送るのは確定したビットだけなのでカードは残りのビットだけを返す
+  private byte[] tta_sdd(int sel_cmd, int timeout) throws IOException {
+    byte[] cln = new byte[5];
+    int known = 0; //確定した(または 1 と仮定した)ビット数. 下位ビットから送られる
+    while(true) {
+      int bytes = known / 8, bits = known % 8;
+      byte[] sdd_req = new byte[2 + bytes + (bits > 0 ? 1 : 0)];
+      sdd_req[0] = (byte)sel_cmd;
+      sdd_req[1] = (byte)((2 + bytes) << 4 | bits); //NVB
+      System.arraycopy(cln, 0, sdd_req, 2, sdd_req.length - 2);
+      chipset.in_set_protocol(bits == 0 ? TTA_SDD_PROTOCOL : TTA_ANTICOLL_PROTOCOL[bits]); //同じなら送られない
+      ByteBuffer res = chipset.in_comm_rf(sdd_req, 0, sdd_req.length, timeout);
+      if(res == null) return null;
+      int status = res.getInt(res.position());
+      byte[] rx = res.array();
+      int offset = res.position() + 5, n = res.limit() - offset;
+      if(status == 0) {
+        if(n != 5 - bytes) return null;
+        int mask = (1 << bits) - 1; //送ったビット
+        cln[bytes] = (byte)((cln[bytes] & mask) | (rx[offset] & ~mask));
+        System.arraycopy(rx, offset + 1, cln, bytes + 1, n - 1);
+        if((cln[0] ^ cln[1] ^ cln[2] ^ cln[3]) != cln[4]) {
+          log.debug(() -> String.format("BCC error %s", Bytes.toString(cln)));
+          return null;
+        }
+        return cln;
+      }
+      if(status == CommunicationException.RECEIVE_TIMEOUT_ERROR && known > 0) {
+        int at = (known-1) / 8, bit = 1 << ((known-1) % 8);
+        if((cln[at] & bit) == 0) return null; //0 のカードも居なくなった
+        cln[at] &= ~bit; //1 のカードは居ない. 同じビット数で 0 のカードに送り直す
+        continue;
+      }
+      if(status != CommunicationException.COLLISION_ERROR) {
+        if(status != CommunicationException.RECEIVE_TIMEOUT_ERROR) log.debug(() -> new CommunicationException(status).getMessage());
+        return null;
+      }
+      //衝突. 応答は衝突の手前までで, status の次のバイトが最後のバイトの有効ビット数(0 は 8)
+      int last = rx[res.position() + 4] & 0x07;
+      int collision = (bytes + n) * 8 - (last == 0 ? 0 : 8 - last);
+      if(collision < known || collision >= 32) return null;
+      for(int i=known; i<collision; i++) {
+        int bit = 1 << (i % 8);
+        if((rx[offset + i / 8 - bytes] & bit) != 0) cln[i / 8] |= bit; else cln[i / 8] &= ~bit;
+      }
+      cln[collision / 8] |= 1 << (collision % 8);
+      known = collision + 1;
+      log.debug(() -> String.format("anticollision: collision at bit %d", collision));
+    }
+  }
+
+  private static final byte[] SENSB_REQ = Bytes.of(0x05, 0x00, 0x00); //AFI=全て, N=1
+  private static final Chipset.InsetProtocolParams TTB_PROTOCOL = Chipset.InsetProtocolParams.getDefault()
+          .initial_guard_time(20).add_sof(1).check_sof(1).add_eof(1).check_eof(1);
+
+  //Sense for a Type B Target. 戻り値は SENSB_RES (50 PUPI(4) ...)
+  byte[] sense_ttb(String target, int timeout) throws IOException {
+    log.debug("polling for NFC-B technology");
+
+    chipset.in_set_rf(target);
+    chipset.in_set_protocol(TTB_PROTOCOL);
+
+    try {
+      byte[] sensb_res = chipset.in_comm_rf(SENSB_REQ, timeout);
+      if(sensb_res != null && sensb_res.length >= 12 && sensb_res[0] == 0x50) {
+        log.debug(() -> String.format("rcvd SENSB_RES %s", Bytes.toString(sensb_res)));
+        return sensb_res;
       }
     } catch(CommunicationException e) {
       if(!e.isReceiveTimeout()) log.debug(e.getMessage());
@@ -0,0 +1,165 @@
+package com.teratail.q_bqafusg2g5at35;
+
+import java.io.*;
+import java.util.*;
+
+class FelicaException extends CardException {
+  final int status1, status2;
+  FelicaException(int status1, int status2) {
+    super(String.format("STATUS FLAG %02x %02x", status1, status2));
+    this.status1 = status1;
+    this.status2 = status2;
+  }
+}
+
+//sense_ttf で見つかった FeliCa カードへのコマンド
+class FelicaTag {
+  private final Device device;
+  private final String target;
+  final byte[] idm, pmm;
+
+  private int maxServices = 16; //1 回のコマンドに入れられるサービス数
+  private int maxBlocks = 15; //1 回のコマンドで読み書きできるブロック数 (カードにより 4 等)
+  private int timeout = 0; //[ms] 0 なら PMm から求める
+
+  //sensf_res は sense_ttf の戻り値
+  FelicaTag(Device device, String target, byte[] sensf_res) {
+    this.device = device;
+    this.target = target;
+    this.idm = Arrays.copyOfRange(sensf_res, 1, 9);
+    this.pmm = Arrays.copyOfRange(sensf_res, 9, 17);
+  }
+
+  FelicaTag setMaxServices(int maxServices) {
+    if(maxServices < 1 || maxServices > 16) throw new IllegalArgumentException("maxServices=" + maxServices);
+    this.maxServices = maxServices;
+    return this;
+  }
+  FelicaTag setMaxBlocks(int maxBlocks) {
+    if(maxBlocks < 1 || maxBlocks > 15) throw new IllegalArgumentException("maxBlocks=" + maxBlocks);
+    this.maxBlocks = maxBlocks;
+    return this;
+  }
+  //0 で PMm から求める (既定)
+  FelicaTag setTimeout(int timeout) {
+    this.timeout = timeout;
+    return this;
+  }
+
+  //service_code の first から count ブロックを読む
+  byte[][] read_without_encryption(int service_code, int first, int count) throws IOException {
+    int[] blocks = new int[count];
+    for(int i=0; i<count; i++) blocks[i] = first + i;
+    return read_without_encryption(new int[]{service_code}, new int[][]{blocks});
+  }
+
+  //service_codes[i] のブロック blocks[i][...] を読む. 戻り値は指定順に並べたブロックデータ(16 バイト)
+  //カードの上限を超える分は複数のコマンドに分けて続けて送る. Device の BlockCache に有るブロックは送らない
+  byte[][] read_without_encryption(int[] service_codes, int[][] blocks) throws IOException {
+    if(service_codes.length != blocks.length) throw new IllegalArgumentException("blocks.length=" + blocks.length);
+    BlockCache cache = device.getBlockCache();
+    if(cache == null) return read_blocks(service_codes, blocks);
+
+    int total = 0;
+    for(int[] b : blocks) total += b.length;
+    byte[][] result = new byte[total][];
+    int[][] missing = new int[blocks.length][]; //キャッシュに無かったブロック
+    int[] positions = new int[total]; //missing の各ブロックの result での位置
+    int misses = 0;
+    for(int s=0, i=0; s<service_codes.length; s++) {
+      int[] missed = new int[blocks[s].length];
+      int m = 0;
+      for(int block : blocks[s]) {
+        result[i] = cache.get(idm, service_codes[s], block);
+        if(result[i] == null) {
+          missed[m++] = block;
+          positions[misses++] = i;
+        }
+        i++;
+      }
+      missing[s] = Arrays.copyOf(missed, m);
+    }
+    if(misses == 0) return result; //RF は使わない
+
+    byte[][] read = read_blocks(service_codes, missing);
+    for(int s=0, j=0; s<service_codes.length; s++) {
+      for(int block : missing[s]) {
+        cache.put(idm, service_codes[s], block, read[j]);
+        result[positions[j]] = read[j];
+        j++;
+      }
+    }
+    return result;
+  }
+
+  private byte[][] read_blocks(int[] service_codes, int[][] blocks) throws IOException {
+    int total = 0;
+    for(int[] b : blocks) total += b.length;
+    byte[][] result = new byte[total][];
+
+    List<Integer> services = new ArrayList<>(); //今回のコマンドのサービスリスト
+    ByteArrayOutputStream block_list = new ByteArrayOutputStream();
+    int count = 0, done = 0;
+    for(int s=0; s<service_codes.length; s++) {
+      for(int block : blocks[s]) {
+        int index = services.indexOf(service_codes[s]);
+        int elementLength = block < 0x100 ? 2 : 3;
+        boolean full = count == maxBlocks
+                || (index < 0 && services.size() == maxServices)
+                || commandLength(services.size() + (index < 0 ? 1 : 0), block_list.size() + elementLength) > 0xff;
+        if(full) {
+          done += read(services, block_list.toByteArray(), count, result, done);
+          services.clear();
+          block_list.reset();
+          count = 0;
+          index = -1;
+        }
+        if(index < 0) {
+          index = services.size();
+          services.add(service_codes[s]);
+        }
+        if(block < 0x100) { //2 バイトのブロックリストエレメント
+          block_list.write(0x80 | index);
+          block_list.write(block);
+        } else {
+          block_list.write(index);
+          block_list.write(block);
+          block_list.write(block >> 8);
+        }
+        count++;
+      }
+    }
+    if(count > 0) read(services, block_list.toByteArray(), count, result, done);
+    return result;
+  }
+
+  private static int commandLength(int services, int block_list_length) {
+    return 1 + 1 + 8 + 1 + services * 2 + 1 + block_list_length; //LEN CMD IDm n サービス m ブロック
+  }
+
+  private int read(List<Integer> services, byte[] block_list, int count, byte[][] result, int offset) throws IOException {
+    ByteArrayOutputStream cmd = new ByteArrayOutputStream();
+    cmd.write(0x06);
+    cmd.write(idm, 0, idm.length);
+    cmd.write(services.size());
+    for(int service_code : services) {
+      cmd.write(service_code);
+      cmd.write(service_code >> 8);
+    }
+    cmd.write(count);
+    cmd.write(block_list, 0, block_list.length);
+
+    int timeout = this.timeout > 0 ? this.timeout : Device.ttf_timeout(pmm, Device.PMM_READ, count);
+    byte[] res = device.exchange_ttf(target, cmd.toByteArray(), timeout);
+    if(res == null) throw new IOException("no response");
+    if(res.length < 11 || res[0] != 0x07 || !Arrays.equals(Arrays.copyOfRange(res, 1, 9), idm)) {
+      throw new CardException(String.format("unexpected response %s", Bytes.toString(res)));
+    }
+    if(res[9] != 0 || res[10] != 0) throw new FelicaException(res[9] & 0xff, res[10] & 0xff);
+    if(res.length < 12 + count * 16 || (res[11] & 0xff) != count) {
+      throw new CardException(String.format("unexpected response %s", Bytes.toString(res)));
+    }
+    for(int i=0; i<count; i++) result[offset+i] = Arrays.copyOfRange(res, 12 + i*16, 12 + (i+1)*16);
+    return count;
+  }
+}
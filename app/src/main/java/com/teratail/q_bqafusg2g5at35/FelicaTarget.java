@@ -0,0 +1,129 @@
+package com.teratail.q_bqafusg2g5at35;
+
+import java.util.*;
+
+//Device.listen_ttf で FeliCa カードとして振る舞う時の応答表. 来るはずのコマンド毎に応答の TgCommRF フレームを
+//前もって組み立てておき, 受信したら表を引いて 1 回書き込むだけにする (PMm の応答時間に間に合わせる為)
+class FelicaTarget {
+  private static class Entry {
+    final byte[] command; //長さバイトを除く
+    final byte[] mask; //0 のバイトは比べない. null なら全て比べる
+    final byte[] response; //長さバイトを除く
+    final double budget; //[ms] PMm から求めた応答期限
+    Chipset.Prepared prepared;
+
+    Entry(byte[] command, byte[] mask, byte[] response, double budget) {
+      this.command = command;
+      this.mask = mask;
+      this.response = response;
+      this.budget = budget;
+    }
+
+    boolean matches(byte[] frame, int offset, int length) {
+      if(length != command.length + 1 || (frame[offset] & 0xff) != length) return false;
+      for(int i=0; i<command.length; i++) {
+        if(mask != null && mask[i] == 0) continue;
+        if(frame[offset+1+i] != command[i]) return false;
+      }
+      return true;
+    }
+  }
+
+  //SENSF_RES は 2.417ms + スロット毎 1.208ms 以内. スロット 0 で答える
+  private static final double SENSF_RES_BUDGET = 2.417;
+
+  final byte[] idm, pmm;
+  final int systemCode;
+  private final List<Entry> entries = new ArrayList<>();
+  private Chipset.Prepared listen; //何も送らずに次のコマンドを待つ
+  private int preparedTimeout = -1;
+
+  //計測値. listen_ttf のスレッドだけが書く. hostTurnaround は受信から応答を書き始めるまでのホスト側の時間[ns]で,
+  //USB とチップの往復は含まない. PMm の期限内でもリーダは既にタイムアウトしているかも知れない
+  private volatile long responses, misses, hostOverBudget, maxHostTurnaround;
+
+  FelicaTarget(byte[] idm, byte[] pmm, int systemCode) {
+    if(idm.length != 8) throw new IllegalArgumentException("idm.length=" + idm.length);
+    if(pmm.length != 8) throw new IllegalArgumentException("pmm.length=" + pmm.length);
+    this.idm = idm.clone();
+    this.pmm = pmm.clone();
+    this.systemCode = systemCode;
+    //SENSF_REQ 00 sc sc rc tsn. sc はワイルドカード ffff か自分のシステムコード, tsn は見ない
+    byte[] mask = Bytes.of(1, 1, 1, 1, 0);
+    for(int sc : new int[]{0xffff, systemCode}) {
+      byte[] res = Bytes.join(Bytes.join(Bytes.of(0x01), idm), pmm);
+      add(Bytes.of(0x00, sc >> 8, sc, 0, 0), mask, res, SENSF_RES_BUDGET);
+      add(Bytes.of(0x00, sc >> 8, sc, 1, 0), mask, Bytes.join(res, Bytes.of(systemCode >> 8, systemCode)), SENSF_RES_BUDGET);
+    }
+  }
+
+  //command に完全に一致したら response を返す. どちらも長さバイトを除く
+  FelicaTarget respond(byte[] command, byte[] response) {
+    int index;
+    switch(command[0] & 0xff) {
+      case 0x02: index = Device.PMM_REQUEST_SERVICE; break;
+      case 0x04: index = Device.PMM_REQUEST_RESPONSE; break;
+      case 0x06: index = Device.PMM_READ; break;
+      case 0x08: index = Device.PMM_WRITE; break;
+      default: index = Device.PMM_OTHER; break;
+    }
+    return add(command, null, response, Device.ttf_response_time(pmm, index, 1));
+  }
+
+  //service の block を 1 ブロック読む Read Without Encryption に data を返す
+  FelicaTarget setBlock(int service, int block, byte[] data) {
+    if(data.length != 16) throw new IllegalArgumentException("data.length=" + data.length);
+    if(block < 0 || block > 0xff) throw new IllegalArgumentException("block=" + block);
+    byte[] command = Bytes.join(Bytes.join(Bytes.of(0x06), idm), Bytes.of(1, service, service >> 8, 1, 0x80, block));
+    byte[] response = Bytes.join(Bytes.join(Bytes.join(Bytes.of(0x07), idm), Bytes.of(0, 0, 1)), data);
+    return respond(command, response);
+  }
+
+  private FelicaTarget add(byte[] command, byte[] mask, byte[] response, double budget) {
+    entries.add(new Entry(command, mask, response, budget));
+    preparedTimeout = -1; //組み立て直す
+    return this;
+  }
+
+  //全ての応答フレームを recvTimeout[ms] で組み立てておく. 同じなら何もしない
+  void prepare(int recvTimeout) {
+    if(preparedTimeout == recvTimeout) return;
+    for(Entry entry : entries) {
+      entry.prepared = Chipset.tg_comm_rf(Bytes.join(Bytes.of(entry.response.length + 1), entry.response), recvTimeout);
+    }
+    listen = Chipset.tg_comm_rf(new byte[0], recvTimeout);
+    preparedTimeout = recvTimeout;
+  }
+
+  Chipset.Prepared listen() {
+    return listen;
+  }
+
+  //受信したコマンド(長さバイトから)への応答. 表に無ければ null.
+  //received[ns] はホストが受信した時刻で, ここから応答を書き始めるまでを PMm の期限と比べて記録する
+  Chipset.Prepared answer(byte[] frame, int offset, int length, long received) {
+    Entry entry = find(frame, offset, length);
+    if(entry == null) {
+      misses++;
+      return null;
+    }
+    long turnaround = System.nanoTime() - received;
+    responses++;
+    if(turnaround > maxHostTurnaround) maxHostTurnaround = turnaround;
+    if(turnaround > entry.budget * 1e6) hostOverBudget++; //ホストだけで期限を使い切った. 確実に間に合っていない
+    return entry.prepared;
+  }
+
+  private Entry find(byte[] frame, int offset, int length) {
+    for(int i=0, n=entries.size(); i<n; i++) {
+      Entry entry = entries.get(i);
+      if(entry.matches(frame, offset, length)) return entry;
+    }
+    return null;
+  }
+
+  long getResponses() { return responses; }
+  long getMisses() { return misses; }
+  long getHostOverBudget() { return hostOverBudget; }
+  long getMaxHostTurnaroundNanos() { return maxHostTurnaround; }
+}
@@ -0,0 +1,118 @@
+package com.teratail.q_bqafusg2g5at35;
+
+import java.io.IOException;
+
+//Transport からの受信をフレーム(ACK, ERR, 拡張フレーム)単位に切り出す. 1 回の転送に複数フレーム(ACK+DATA)が入っていても,
+//1 フレームが複数回の転送に分かれていても良い. 切り出したフレームは常に buffer() の先頭に置く
+class FrameReader {
+  private static final int MIN_FREE = 512; //1 回の転送で受けられる様に空けておく量
+  private static final int ERR_WAIT = 2; //[ms] ERR らしい 5 バイトの後に続きが来ないか待つ時間
+
+  private byte[] buffer;
+  private int length; //buffer[0..length) が受信済み. length は常に直前の転送の終わり
+  private int frame; //前回返したフレームの長さ
+  private long starts; //ビット i が立っていれば buffer[i] から転送が始まった (先頭 64 バイトまで)
+  private boolean maybeErr; //buffer[0..5) が 1 つ以上の転送だけで出来た 00 00 ff ff ff
+
+  FrameReader(int capacity) {
+    buffer = new byte[Math.max(capacity, MIN_FREE)];
+  }
+
+  //next() が返したフレームの入っているバッファ. 大きなフレームを受けると差し替わる
+  byte[] buffer() {
+    return buffer;
+  }
+
+  //受信済みの未処理データを捨てる. エラーの後に呼ぶ
+  void clear() {
+    length = frame = 0;
+    starts = 0;
+    maybeErr = false;
+  }
+
+  //次のフレームを buffer() の先頭に置き, その長さを返す. timeout[ms] は全体の待ち時間
+  int next(Transport transport, int timeout) throws IOException {
+    consume(frame);
+    frame = 0;
+    long deadline = System.nanoTime() + timeout * 1000000L;
+    while(true) {
+      int n = parse();
+      if(n > 0) return frame = n;
+
+      reserve(length + MIN_FREE);
+      int remaining = (int)((deadline - System.nanoTime()) / 1000000L);
+      if(maybeErr) {
+        //拡張フレームのヘッダが転送の切れ目で分かれただけかも知れないので, LEN/LCS が続かないか少しだけ待つ
+        try {
+          read(transport, Math.max(1, Math.min(remaining, ERR_WAIT)));
+        } catch(IOException e) {
+          return frame = 5; //続きは来なかった
+        }
+        continue;
+      }
+      if(remaining <= 0 && timeout > 0) throw new IOException("receive error: timeout");
+      read(transport, Math.max(1, remaining));
+    }
+  }
+
+  private void read(Transport transport, int timeout) throws IOException {
+    int start = length;
+    length += transport.read(buffer, length, timeout);
+    if(start < 64) starts |= 1L << start;
+  }
+
+  //先頭から完全なフレームが取れればその長さ, 足りなければ 0
+  private int parse() {
+    int sync = indexOfPreamble();
+    if(sync < 0) { //00 00 ff の途中かも知れない 2 バイトだけ残す
+      consume(Math.max(0, length - 2));
+      return 0;
+    }
+    consume(sync);
+    if(length < 5) return 0;
+    if(buffer[3] == 0 && buffer[4] == (byte)0xff) { //ACK
+      return length >= 6 ? 6 : 0;
+    }
+    if(buffer[3] == (byte)0xff && buffer[4] == (byte)0xff) { //拡張フレーム. ERR は 00 00 ff ff ff だけの転送
+      if(length == 5 && (starts & 1) != 0) maybeErr = true;
+      if(length < Frame.HEADER_LENGTH) return 0;
+      if(Bytes.checkSum(buffer, 5, 8) != 0) {
+        if(maybeErr) return 5; //ERR の後に別の転送が届いた
+        consume(3); //次の同期を探す
+        throw new IllegalStateException("length checksum error");
+      }
+      return complete(Frame.HEADER_LENGTH + Frame.dataLength(buffer) + 2);
+    }
+    //通常フレーム 00 00 ff LEN LCS. Port-100 は応答に使わないので, 壊れた受信として扱う
+    consume(3); //次の同期を探す
+    throw new IllegalStateException("unsupported frame: normal frame");
+  }
+
+  private int complete(int total) {
+    if(length >= total) return total;
+    reserve(total + MIN_FREE);
+    return 0;
+  }
+
+  private int indexOfPreamble() {
+    for(int i=0; i+2<length; i++) {
+      if(buffer[i] == 0 && buffer[i+1] == 0 && buffer[i+2] == (byte)0xff) return i;
+    }
+    return -1;
+  }
+
+  private void consume(int n) {
+    if(n <= 0) return;
+    System.arraycopy(buffer, n, buffer, 0, length - n);
+    length -= n;
+    starts = n < 64 ? starts >>> n : 0;
+    maybeErr = false;
+  }
+
+  private void reserve(int capacity) {
+    if(buffer.length >= capacity) return;
+    byte[] grown = new byte[Math.max(capacity, buffer.length * 2)];
+    System.arraycopy(buffer, 0, grown, 0, length);
+    buffer = grown;
+  }
+}
@@ -10,7 +10,9 @@ import androidx.annotation.NonNull;
 import androidx.appcompat.app.AppCompatActivity;
 import androidx.lifecycle.*;
 
+import java.io.*;
 import java.util.*;
+import java.util.concurrent.*;
 import java.util.function.*;
 
 public class MainActivity extends AppCompatActivity {
@@ -23,62 +25,203 @@ public class MainActivity extends AppCompatActivity {
 
     TextView textView = findViewById(R.id.textView);
     textView.setText("start\n");
-    logger = new Logger() {
-      @Override
-      public void log(String s) {
-        textView.append("I:");
-        textView.append(s);
-        textView.append("\n");
+    logger = new TextViewLogger(textView, Logger.Level.INFO); //ポーリングスレッドからも呼ばれる
+    File journalDir = new File(getFilesDir(), "taps");
+    io.execute(() -> { //開く時に全件を読み直すので UI スレッドでは開かない. 開くまでの検出は io に並んで待つ
+      try {
+        journal = new TapJournal(journalDir);
+      } catch(IOException e) {
+        logger.error("journal: " + e); //記録はできないが読み取りは続ける
       }
-      @Override
-      public void debug(String s) {
-        textView.append("D:");
-        textView.append(s);
-        textView.append("\n");
+    });
+    File blocksFile = new File(getFilesDir(), "blocks");
+    io.execute(() -> { //読み込む前に来た読み取りはカードから読むだけ
+      try {
+        logger.log("block cache: " + blocks.load(blocksFile) + " blocks");
+      } catch(IOException e) {
+        logger.error("block cache: " + e); //壊れていたら空から始め, 次の save で置き換える
       }
+    });
+
+    pool = new ReaderPool(logger,
+            session -> new PollScheduler(session.setBlockCache(blocks))
+                    .add("212F", 2, 10)
+                    .add("106A", 1, 30)
+                    .add("106B", 1, 30),
+            new ReaderPool.Listener() {
+              @Override
+              public void onArrival(String reader, long id, PollScheduler.Result result) {
+                long time = System.currentTimeMillis();
+                io.execute(() -> {
+                  if(journal == null) return;
+                  try {
+                    journal.append(time, reader, result); //検出は全て残す
+                  } catch(IOException e) {
+                    logger.error("journal: " + e);
+                  }
+                });
+                if(!taps.offer(id)) return; //直前に(別のリーダで)読んだカード
+                byte[] data = result.response;
+                switch(result.type()) {
+                  case 'F':
+                    logger.log(reader + " IDm:" + Bytes.toString(data, 1, 1 + 8));
+                    logger.log(reader + " PMm:" + Bytes.toString(data, 9, 9 + 8));
+                    break;
+                  case 'A':
+                    logger.log(reader + " UID:" + Bytes.toString(data, 3, data.length));
+                    break;
+                  case 'B':
+                    logger.log(reader + " PUPI:" + Bytes.toString(data, 1, 1 + 4));
+                    break;
+                }
+              }
+              @Override
+              public void onDeparture(String reader, long id) {
+                logger.log(String.format("%s left %016x", reader, id));
+              }
+              @Override
+              public void onError(String reader, IOException e) {
+                logger.error(reader + " " + e); //ブレーカーが開いている間は毎周期来るので 1 行だけ
+                logger.debug(() -> reader + " " + Arrays.toString(e.getStackTrace()));
+              }
+            });
+
+    getLifecycle().addObserver(new DefaultLifecycleObserver() {
       @Override
-      public void error(String s) {
-        textView.append("E:");
-        textView.append(s);
-        textView.append("\n");
+      public void onDestroy(@NonNull LifecycleOwner owner) {
+        pool.close(); //この後 onArrival は来ないので, 以下が io に最後に並ぶ
+        io.execute(() -> {
+          try {
+            blocks.save(blocksFile);
+          } catch(IOException e) {
+            logger.error("block cache: " + e);
+          }
+          if(journal == null) return;
+          try {
+            journal.close();
+          } catch(IOException e) {
+            logger.error("journal: " + e);
+          }
+        });
+        io.shutdown(); //並んでいる分は書いてから終わる
       }
-    };
+    });
 
     new UsbDeviceManager(this, getLifecycle(),
             (vendarId, productId) -> vendarId == 0x054c && productId == 0x06c3,
-            this::showCardInfo
+            this::startPolling,
+            this::stopPolling
     );
   }
 
-  private void showCardInfo(UsbManager manager, UsbDevice device) {
-    if(device == null) return;
-    if(manager == null) throw new NullPointerException("manager");
-    try(Device rcs380 = new Device(new Transport(manager, device), logger)) {
-      byte[] data = rcs380.sense_ttf("212F");
-      if(data == null) {
-        logger.log("!!no data!!");
-      } else {
-        String idm = Bytes.toString(data, 1, 1 + 8);
-        String pmm = Bytes.toString(data, 9, 9 + 8);
-        logger.log("IDm:" + idm);
-        logger.log("PMm:" + pmm);
+  private ReaderPool pool; //リーダ毎に専用の I/O スレッドでポーリングする
+  private final TapCache taps = new TapCache(256, 1000); //ReaderPool の通知は直列化されているので同期不要
+  private final ExecutorService io = Executors.newSingleThreadExecutor(); //ファイルの読み書きは全てここで順に行う
+  private TapJournal journal; //io スレッドだけが触る. null なら記録しない
+  //全リーダで共有する. 読み書きはスレッドセーフ, ファイルへの load/save は io で. 覚えるブロックは cache() で足す
+  private final BlockCache blocks = new BlockCache(1024);
+  private static final int QUEUED_IN_TRANSFERS = 2; //出しておく IN 転送の数. 0 なら read 毎に bulkTransfer
+
+  private void startPolling(UsbManager manager, UsbDevice device) {
+    String name = device.getDeviceName();
+    if(pool.attach(name, () -> {
+      UsbTransport usb = new UsbTransport(manager, device);
+      return QUEUED_IN_TRANSFERS > 0 ? new QueuedTransport(usb, QUEUED_IN_TRANSFERS) : usb;
+    })) logger.log(name + " attached");
+  }
+
+  private void stopPolling(String name) {
+    if(!pool.contains(name)) return;
+    pool.detach(name); //他のリーダはそのまま
+    logger.log(name + " detached");
+  }
+}
+
+//行をリングバッファに溜め, UI スレッドでフレーム毎にまとめて TextView へ追加する
+class TextViewLogger implements Logger {
+  private static final int CAPACITY = 256;
+  private static final long FLUSH_INTERVAL = 16; //[ms] 約 1 フレーム
+
+  private final TextView textView;
+  private final String[] lines = new String[CAPACITY];
+  private int head, size, dropped;
+  private boolean scheduled;
+  private volatile Level level;
+  private final Runnable flush = this::flush;
+
+  TextViewLogger(TextView textView, Level level) {
+    this.textView = textView;
+    this.level = level;
+  }
+
+  void setLevel(Level level) {
+    this.level = level;
+  }
+
+  @Override
+  public Level level() {
+    return level;
+  }
+
+  @Override
+  public void log(String s) {
+    if(isEnabled(Level.INFO)) add("I:", s);
+  }
+  @Override
+  public void debug(String s) {
+    if(isEnabled(Level.DEBUG)) add("D:", s);
+  }
+  @Override
+  public void error(String s) {
+    if(isEnabled(Level.ERROR)) add("E:", s);
+  }
+
+  private synchronized void add(String prefix, String s) {
+    if(size == CAPACITY) { //溢れたら古い行を捨てる
+      head = (head + 1) % CAPACITY;
+      size--;
+      dropped++;
+    }
+    lines[(head + size) % CAPACITY] = prefix + s;
+    size++;
+    if(!scheduled) {
+      scheduled = true;
+      textView.postDelayed(flush, FLUSH_INTERVAL);
+    }
+  }
+
+  private void flush() {
+    StringBuilder sb = new StringBuilder();
+    synchronized(this) {
+      if(dropped > 0) sb.append("(").append(dropped).append(" lines dropped)\n");
+      for(int i=0; i<size; i++) {
+        int index = (head + i) % CAPACITY;
+        sb.append(lines[index]).append('\n');
+        lines[index] = null;
       }
-    } catch(Exception e) {
-      logger.error(Arrays.toString(e.getStackTrace()));
+      head = size = dropped = 0;
+      scheduled = false;
     }
+    textView.append(sb);
   }
 }
 
+//選択した USB デバイスを全て見つけ, 1 台ずつ接続/切断を通知する
 class UsbDeviceManager {
   private static final String ACTION_USB_PERMISSION = UsbDeviceManager.class.getCanonicalName();
 
   private final BiFunction<Integer,Integer,Boolean> selector;
-  private final BiConsumer<UsbManager,UsbDevice> action;
+  private final BiConsumer<UsbManager,UsbDevice> attached;
+  private final Consumer<String> detached;
   private final UsbManager manager;
+  private final Set<String> devices = new HashSet<>(); //attached を通知済みのデバイス名
+  private final Set<String> requesting = new HashSet<>(); //パーミッションの返事待ち
 
-  UsbDeviceManager(Context context, Lifecycle lifecycle, BiFunction<Integer,Integer,Boolean> selector, BiConsumer<UsbManager, UsbDevice> action) {
+  UsbDeviceManager(Context context, Lifecycle lifecycle, BiFunction<Integer,Integer,Boolean> selector,
+                   BiConsumer<UsbManager,UsbDevice> attached, Consumer<String> detached) {
     this.selector = selector;
-    this.action = action;
+    this.attached = attached;
+    this.detached = detached;
     this.manager = (UsbManager)context.getSystemService(Context.USB_SERVICE);
 
     UsbBroadcastReceiver revceiver = new UsbBroadcastReceiver();
@@ -94,33 +237,46 @@ class UsbDeviceManager {
     discoverDevices(context);
   }
 
+  //繋がっている全てのデバイスを調べ, 増えたものと無くなったものだけを通知する
   void discoverDevices(Context context) {
     Map<String, UsbDevice> map = manager.getDeviceList();
+    Set<String> present = new HashSet<>();
     if(map != null) {
       for(UsbDevice device : map.values()) {
-        if(selector.apply(device.getVendorId(), device.getProductId())) {
-          if(manager.hasPermission(device)) {
-            action.accept(manager, device); //有った&パーミッションも有る
-          } else {
-            manager.requestPermission(device, //パーミッションを得てから
-                    PendingIntent.getBroadcast(context, 0, new Intent(ACTION_USB_PERMISSION),
-                            PendingIntent.FLAG_MUTABLE | PendingIntent.FLAG_UPDATE_CURRENT));
-          }
-          return;
+        if(!selector.apply(device.getVendorId(), device.getProductId())) continue;
+        present.add(device.getDeviceName());
+        if(manager.hasPermission(device)) {
+          attach(device); //有った&パーミッションも有る
+        } else if(requesting.add(device.getDeviceName())) {
+          manager.requestPermission(device, //パーミッションを得てから
+                  PendingIntent.getBroadcast(context, 0, new Intent(ACTION_USB_PERMISSION),
+                          PendingIntent.FLAG_MUTABLE | PendingIntent.FLAG_UPDATE_CURRENT));
         }
       }
     }
-    action.accept(manager, null); //無かった
+    for(Iterator<String> i = devices.iterator(); i.hasNext(); ) { //抜かれた
+      String name = i.next();
+      if(present.contains(name)) continue;
+      i.remove();
+      detached.accept(name);
+    }
+    requesting.retainAll(present);
+  }
+
+  private void attach(UsbDevice device) {
+    if(devices.add(device.getDeviceName())) attached.accept(manager, device);
   }
 
   private class UsbBroadcastReceiver extends BroadcastReceiver {
     @Override
     public void onReceive(Context context, Intent intent) {
       if(intent.getAction().equals(ACTION_USB_PERMISSION)) {
-        action.accept(manager,
-                intent.getBooleanExtra(UsbManager.EXTRA_PERMISSION_GRANTED, false)
-                        ? intent.getParcelableExtra(UsbManager.EXTRA_DEVICE) //パーミッションが得られた
-                        : null); //得られなかった
+        UsbDevice device = intent.getParcelableExtra(UsbManager.EXTRA_DEVICE);
+        if(device == null) return;
+        requesting.remove(device.getDeviceName());
+        if(intent.getBooleanExtra(UsbManager.EXTRA_PERMISSION_GRANTED, false)) {
+          attach(device); //パーミッションが得られた
+        }
         return;
       }
       //USB抜き差し
@@ -135,7 +291,7 @@ class UsbDeviceManager {
     IntentFilter getIntentFilter() {
       IntentFilter filter = new IntentFilter();
       filter.addAction(ACTION_USB_PERMISSION);
-      filter.addAction(UsbManager.ACTION_USB_DEVICE_DETACHED);
+      filter.addAction(UsbManager.ACTION_USB_DEVICE_ATTACHED);
       filter.addAction(UsbManager.ACTION_USB_DEVICE_DETACHED);
       return filter;
     }
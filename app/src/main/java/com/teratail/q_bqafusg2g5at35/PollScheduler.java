@@ -0,0 +1,171 @@
+package com.teratail.q_bqafusg2g5at35;
+
+import java.io.IOException;
+import java.util.*;
+
+//複数の方式(212F/424F/106A/106B)を重み付きで巡回して sense する. 直近に見つかった方式から試す
+class PollScheduler {
+  static class Result {
+    final String brty;
+    final byte[] response; //sense_ttf/tta/ttb の戻り値
+
+    Result(String brty, byte[] response) {
+      this.brty = brty;
+      this.response = response;
+    }
+
+    char type() {
+      return brty.charAt(brty.length()-1);
+    }
+
+    //カードの識別子. F:IDm A:UID B:PUPI
+    byte[] id() {
+      switch(type()) {
+        case 'F': return Arrays.copyOfRange(response, 1, 9);
+        case 'A': return Arrays.copyOfRange(response, 3, response.length);
+        case 'B': return Arrays.copyOfRange(response, 1, 5);
+        default: throw new IllegalStateException("brty=" + brty);
+      }
+    }
+
+    //id() を long にしたもの. 8 バイトを超える UID は畳み込む
+    long key() {
+      byte[] id = id();
+      long key = 0;
+      for(int i=0; i<id.length; i++) key = (i < 8 ? key << 8 : key * 31) ^ (id[i] & 0xff);
+      return key;
+    }
+  }
+
+  private static class Entry {
+    final String brty;
+    final int weight;
+    final int budget; //[ms] RF の応答待ち時間
+    int credit;
+    long lastSeen; //見つかった巡回番号. 0 は未検出
+    boolean attempted;
+
+    Entry(String brty, int weight, int budget) {
+      this.brty = brty;
+      this.weight = weight;
+      this.budget = budget;
+    }
+  }
+
+  private final ReaderSession session;
+  private final List<Entry> entries = new ArrayList<>();
+  private final List<Entry> order = new ArrayList<>();
+  private int maxWeight = 0;
+  private int roundBudget = 0; //[ms] 一巡の上限. 0 は無制限
+  private boolean stopOnFirst = false;
+  private int felicaSlots = 1; //2 以上なら Type F を sense_ttf_multi で複数枚捕捉する
+  private int felicaAttempts = 3;
+  private long round = 0;
+
+  PollScheduler(Device device) {
+    this(ReaderSession.of(device));
+  }
+  //session を通して sense する. 失敗すると session が開き直す
+  PollScheduler(ReaderSession session) {
+    this.session = session;
+  }
+
+  //weight は相対頻度. 最大の重みの方式は毎巡, 半分なら二巡に一度試す
+  PollScheduler add(String brty, int weight, int budget) {
+    char type = brty.charAt(brty.length()-1);
+    if(type != 'F' && type != 'A' && type != 'B') throw new IllegalArgumentException("brty=" + brty);
+    if(weight < 1) throw new IllegalArgumentException("weight=" + weight);
+    if(budget < 0) throw new IllegalArgumentException("budget=" + budget);
+    Entry entry = new Entry(brty, weight, budget);
+    entries.add(entry);
+    order.add(entry);
+    maxWeight = Math.max(maxWeight, weight);
+    return this;
+  }
+
+  PollScheduler setRoundBudget(int roundBudget) {
+    if(roundBudget < 0) throw new IllegalArgumentException("roundBudget=" + roundBudget);
+    this.roundBudget = roundBudget;
+    return this;
+  }
+
+  //true なら最初に見つかった時点でその巡を終える
+  PollScheduler setStopOnFirst(boolean stopOnFirst) {
+    this.stopOnFirst = stopOnFirst;
+    return this;
+  }
+
+  //slots は SENSF_REQ のタイムスロット数(1, 2, 4, 8, 16)
+  PollScheduler setFelicaSlots(int slots, int attempts) {
+    if(slots != 1 && slots != 2 && slots != 4 && slots != 8 && slots != 16) throw new IllegalArgumentException("slots=" + slots);
+    if(attempts < 1) throw new IllegalArgumentException("attempts=" + attempts);
+    this.felicaSlots = slots;
+    this.felicaAttempts = attempts;
+    return this;
+  }
+
+  //失敗しても次の poll() で開き直せるか
+  boolean isReconnectable() {
+    return session.isReconnectable();
+  }
+
+  //次の poll() まで RF を切る
+  void mute() throws IOException {
+    session.execute(device -> {
+      device.mute();
+      return null;
+    });
+  }
+
+  //直前の poll() で brty を試したか
+  boolean wasAttempted(String brty) {
+    for(Entry entry : entries) if(entry.brty.equals(brty)) return entry.attempted;
+    return false;
+  }
+
+  //一巡分 sense する. 見つかったものを試した順に返す
+  List<Result> poll() throws IOException {
+    if(entries.isEmpty()) throw new IllegalStateException("no technology");
+    round++;
+    long deadline = roundBudget == 0 ? Long.MAX_VALUE : System.nanoTime() + roundBudget * 1000000L;
+    List<Result> results = new ArrayList<>();
+
+    for(Entry entry : order) entry.attempted = false;
+    for(Entry entry : order) {
+      entry.credit += entry.weight;
+      if(entry.credit < maxWeight) continue;
+      if(System.nanoTime() >= deadline) break; //残りは次の巡で試す
+      entry.credit -= maxWeight;
+      entry.attempted = true;
+
+      List<byte[]> res = session.execute(device -> sense(device, entry));
+      if(res.isEmpty()) continue;
+      entry.lastSeen = round;
+      for(byte[] r : res) results.add(new Result(entry.brty, r));
+      if(stopOnFirst) break;
+    }
+
+    //直近に見つかった方式を先頭へ (同じなら登録順)
+    order.sort((a, b) -> a.lastSeen != b.lastSeen
+            ? Long.compare(b.lastSeen, a.lastSeen)
+            : Integer.compare(entries.indexOf(a), entries.indexOf(b)));
+    return results;
+  }
+
+  private List<byte[]> sense(Device device, Entry entry) throws IOException {
+    byte[] res;
+    switch(entry.brty.charAt(entry.brty.length()-1)) {
+      case 'F':
+        if(felicaSlots > 1) return device.sense_ttf_multi(entry.brty, felicaSlots, felicaAttempts);
+        res = device.sense_ttf(entry.brty, entry.budget);
+        break;
+      case 'A':
+        res = device.sense_tta(entry.brty, entry.budget);
+        break;
+      default:
+        res = device.sense_ttb(entry.brty, entry.budget);
+        break;
+    }
+    return res == null ? Collections.emptyList() : Collections.singletonList(res);
+  }
+}
@@ -0,0 +1,240 @@
+package com.teratail.q_bqafusg2g5at35;
+
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.ScheduledFuture;
+
+//専用スレッド(または AsyncReader の I/O スレッド)で PollScheduler を一定周期で繰り返し,
+//カードの出入りを IDm(UID) 単位で通知する
+class Poller implements AutoCloseable {
+  interface Listener {
+    void onArrival(long id, PollScheduler.Result result);
+    void onDeparture(long id);
+    default void onError(IOException e) {}
+  }
+
+  private final PollScheduler scheduler;
+  private final AsyncReader reader; //null なら専用スレッドで回す
+  private final Listener listener;
+  private final Object lock = new Object();
+
+  private int interval = 50; //[ms] ポーリング周期
+  private int departureCount = 2; //連続してこの回数見えなければ離れたとみなす
+  private int maxInterval = 0; //[ms] 省電力モードで伸ばす周期の上限(=検出までの最悪時間). 0 なら省電力モードでない
+  private int currentInterval;
+
+  private final Map<Long,Integer> present = new HashMap<>(); //ID -> 連続して見えなかった回数
+  private final Map<Long,String> brtys = new HashMap<>(); //ID -> 見つかった方式
+  private Thread thread;
+  private ScheduledFuture<?> next;
+  private volatile boolean running;
+
+  //計測値 [ns]
+  private volatile long cycles, lastCycle, maxCycle, totalCycle;
+  private volatile long started, rfOnTime; //開始時刻, 省電力モードで RF を入れていた時間
+  private volatile long detections, totalDetect, maxDetect; //検出遅延(前の周期の開始から見つけるまで)
+  private long previousStart;
+
+  Poller(Device device, String target, Listener listener) {
+    this(new PollScheduler(device).add(target, 1, 10), listener);
+  }
+  Poller(PollScheduler scheduler, Listener listener) {
+    this(scheduler, null, listener);
+  }
+  //reader の I/O スレッドで回す. 他の操作はポーリングの合間に実行される
+  Poller(PollScheduler scheduler, AsyncReader reader, Listener listener) {
+    this.scheduler = scheduler;
+    this.reader = reader;
+    this.listener = listener;
+  }
+
+  Poller setInterval(int interval) {
+    if(interval < 0 || (maxInterval != 0 && maxInterval < interval)) throw new IllegalArgumentException("interval=" + interval);
+    this.interval = interval;
+    return this;
+  }
+  //周期毎に RF を切り, カードが無い間は周期を maxInterval まで倍々に伸ばす. 見つかれば interval に戻す
+  Poller setLowPower(int maxInterval) {
+    if(maxInterval != 0 && maxInterval < interval) throw new IllegalArgumentException("maxInterval=" + maxInterval);
+    this.maxInterval = maxInterval;
+    return this;
+  }
+  Poller setDepartureCount(int departureCount) {
+    if(departureCount < 1) throw new IllegalArgumentException("departureCount=" + departureCount);
+    this.departureCount = departureCount;
+    return this;
+  }
+
+  synchronized void start() {
+    if(running) return;
+    running = true;
+    currentInterval = interval;
+    started = System.nanoTime();
+    previousStart = 0;
+    if(reader != null) {
+      next = reader.schedule(this::step, 0);
+      return;
+    }
+    thread = new Thread(this::run, "Poller");
+    thread.start();
+  }
+
+  //I/O スレッドで回している場合は待たずに戻る (実行中の周期はその後で止まる)
+  synchronized void stop() {
+    if(reader != null) {
+      running = false;
+      if(next != null) next.cancel(false);
+      next = null;
+      return;
+    }
+    if(thread == null) return;
+    running = false;
+    synchronized(lock) {
+      lock.notifyAll();
+    }
+    if(thread != Thread.currentThread()) {
+      try {
+        thread.join();
+      } catch(InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+    thread = null;
+  }
+
+  boolean isRunning() {
+    return running;
+  }
+
+  @Override
+  public void close() {
+    stop();
+  }
+
+  long getCycles() { return cycles; }
+  long getLastCycleNanos() { return lastCycle; }
+  long getMaxCycleNanos() { return maxCycle; }
+  long getAverageCycleNanos() {
+    long n = cycles;
+    return n == 0 ? 0 : totalCycle / n;
+  }
+
+  //RF を入れていた時間の割合. 省電力モードでなければ常に入っている
+  double getDutyCycle() {
+    long total = System.nanoTime() - started;
+    if(maxInterval == 0 || cycles == 0 || total <= 0) return 1;
+    return Math.min(1, (double)rfOnTime / total);
+  }
+  long getDetections() { return detections; }
+  long getMaxDetectNanos() { return maxDetect; }
+  long getAverageDetectNanos() {
+    long n = detections;
+    return n == 0 ? 0 : totalDetect / n;
+  }
+
+  private void run() {
+    try {
+      while(running) {
+        long wait = cycle();
+        if(wait > 0) {
+          synchronized(lock) {
+            if(running) lock.wait(wait);
+          }
+        }
+      }
+    } catch(IOException e) {
+      running = false;
+    } catch(InterruptedException e) {
+      running = false;
+    } catch(RuntimeException e) {
+      fail(e);
+    }
+  }
+
+  private void step() {
+    if(!running) return;
+    long wait;
+    try {
+      wait = cycle();
+    } catch(IOException e) {
+      running = false;
+      return;
+    } catch(RuntimeException e) {
+      fail(e);
+      return;
+    }
+    synchronized(this) {
+      if(running) next = reader.schedule(this::step, Math.max(0, wait));
+    }
+  }
+
+  //scheduler や listener のバグでも止まったことを持ち主が分かる様にする
+  private void fail(RuntimeException e) {
+    running = false;
+    try {
+      listener.onError(new IOException("polling stopped: " + e, e));
+    } catch(RuntimeException ignore) {
+      //通知先も壊れている
+    }
+  }
+
+  //1 周期分ポーリングし, 次の周期までの待ち時間[ms]を返す
+  private long cycle() throws IOException {
+    long start = System.nanoTime();
+    try {
+      poll(start);
+      if(maxInterval > 0) scheduler.mute();
+    } catch(IOException e) {
+      listener.onError(e);
+      if(!scheduler.isReconnectable()) throw e;
+    }
+    long elapsed = System.nanoTime() - start;
+    record(elapsed);
+    previousStart = start;
+    if(maxInterval == 0) return interval - elapsed / 1000000L;
+    rfOnTime += elapsed;
+    //カードが有る間は短い周期のまま, 無くなれば徐々に伸ばす. interval が 0 でも 1ms から伸ばす
+    currentInterval = present.isEmpty() ? Math.min(maxInterval, Math.max(1, currentInterval) * 2) : interval;
+    return currentInterval - elapsed / 1000000L;
+  }
+
+  private void poll(long start) throws IOException {
+    List<PollScheduler.Result> results = scheduler.poll();
+    Set<Long> seen = new HashSet<>();
+    for(PollScheduler.Result result : results) {
+      long id = result.key();
+      seen.add(id);
+      brtys.put(id, result.brty);
+      if(present.put(id, 0) == null) {
+        recordDetection(System.nanoTime() - (previousStart == 0 ? start : previousStart));
+        listener.onArrival(id, result);
+      }
+    }
+    for(Iterator<Map.Entry<Long,Integer>> i = present.entrySet().iterator(); i.hasNext(); ) {
+      Map.Entry<Long,Integer> entry = i.next();
+      if(seen.contains(entry.getKey())) continue;
+      if(!scheduler.wasAttempted(brtys.get(entry.getKey()))) continue; //今回は試していない方式
+      int missed = entry.getValue() + 1;
+      if(missed < departureCount) {
+        entry.setValue(missed);
+      } else {
+        i.remove();
+        brtys.remove(entry.getKey());
+        listener.onDeparture(entry.getKey());
+      }
+    }
+  }
+
+  private void recordDetection(long latency) {
+    detections++;
+    totalDetect += latency;
+    if(latency > maxDetect) maxDetect = latency;
+  }
+
+  private void record(long elapsed) {
+    lastCycle = elapsed;
+    if(elapsed > maxCycle) maxCycle = elapsed;
+    totalCycle += elapsed;
+    cycles++;
+  }
+}
@@ -0,0 +1,110 @@
+package com.teratail.q_bqafusg2g5at35;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+//IN 転送を常に depth 個出しておく Transport. read の度に転送を出すのではないので, ACK と応答が続けて届いても
+//USB のスケジューリングを待たずに受け取れる. 受け取った buffer はすぐに出し直す
+class QueuedTransport implements Transport {
+  //非同期に IN 転送を出せる USB の口. Android では UsbTransport (UsbRequest), 試験では SimulatedTransport
+  interface Endpoint extends AutoCloseable {
+    void write(byte[] bytes, int length) throws IOException;
+    //buffer の position から limit まで受信する IN 転送を出す. 完了は await で受け取る
+    void queue(ByteBuffer buffer) throws IOException;
+    //出した IN 転送の 1 つの完了を待ち, その buffer を返す(position が受信の終わり). timeout[ms] 過ぎたら null. 0 は無制限
+    ByteBuffer await(int timeout) throws IOException;
+    @Override
+    void close();
+  }
+
+  //USB の最大パケット長(64)の倍数にしておかないと, 長い応答で転送が溢れる
+  static final int BUFFER_SIZE = (Frame.MAX_LENGTH + 63) / 64 * 64;
+
+  private final Endpoint endpoint;
+  private final ByteBuffer[] buffers; //出した順
+  private final boolean[] completed;
+  private int head = 0; //次に返す buffer
+  private Logger log;
+
+  QueuedTransport(Endpoint endpoint) throws IOException {
+    this(endpoint, 2);
+  }
+  QueuedTransport(Endpoint endpoint, int depth) throws IOException {
+    if(depth < 1) throw new IllegalArgumentException("depth=" + depth);
+    this.endpoint = endpoint;
+    buffers = new ByteBuffer[depth];
+    completed = new boolean[depth];
+    try {
+      for(int i=0; i<depth; i++) {
+        buffers[i] = ByteBuffer.allocateDirect(BUFFER_SIZE);
+        endpoint.queue(buffers[i]);
+      }
+    } catch(IOException e) {
+      endpoint.close();
+      throw e;
+    }
+  }
+
+  @Override
+  public void setLogger(Logger log) {
+    this.log = log;
+  }
+
+  @Override
+  public void write(byte[] bytes) throws IOException {
+    write(bytes, bytes.length);
+  }
+  @Override
+  public void write(byte[] bytes, int length) throws IOException {
+    if(log != null && log.isEnabled(Logger.Level.DEBUG)) log.debug(">>>> " + Bytes.toString(bytes, 0, length));
+    endpoint.write(bytes, length);
+  }
+
+  @Override
+  public byte[] read(int timeout) throws IOException {
+    byte[] buffer = new byte[BUFFER_SIZE];
+    int len = read(buffer, 0, timeout);
+    return Arrays.copyOf(buffer, len);
+  }
+
+  //出した順に返す. 後から出した転送が先に完了したら覚えておく
+  @Override
+  public synchronized int read(byte[] buffer, int offset, int timeout) throws IOException {
+    long deadline = timeout <= 0 ? 0 : System.nanoTime() + timeout * 1000000L;
+    while(!completed[head]) {
+      int wait = 0;
+      if(deadline != 0) {
+        wait = (int)((deadline - System.nanoTime()) / 1000000L);
+        if(wait <= 0) throw new IOException("receive error: len=-1");
+      }
+      ByteBuffer done = endpoint.await(wait);
+      if(done == null) throw new IOException("receive error: len=-1");
+      completed[indexOf(done)] = true;
+    }
+
+    ByteBuffer received = buffers[head];
+    received.flip();
+    int len = received.remaining();
+    boolean fits = len <= buffer.length - offset;
+    if(fits) received.get(buffer, offset, len);
+    received.clear();
+    completed[head] = false;
+    head = (head + 1) % buffers.length;
+    endpoint.queue(received);
+
+    if(!fits) throw new IOException("receive error: len=" + len);
+    if(log != null && log.isEnabled(Logger.Level.DEBUG)) log.debug("<<<< " + Bytes.toString(buffer, offset, offset + len));
+    return len;
+  }
+
+  private int indexOf(ByteBuffer buffer) throws IOException {
+    for(int i=0; i<buffers.length; i++) if(buffers[i] == buffer) return i;
+    throw new IOException("unknown request");
+  }
+
+  @Override
+  public void close() {
+    endpoint.close(); //出している転送も取り消す
+  }
+}
@@ -0,0 +1,112 @@
+package com.teratail.q_bqafusg2g5at35;
+
+import java.io.IOException;
+import java.util.*;
+import java.util.function.Function;
+
+//複数のリーダをそれぞれ専用の I/O スレッドでポーリングし, 各リーダのイベントを 1 本の流れにまとめて通知する.
+//リーダ毎に Transport/Chipset/スレッドが別なので, 抜き差しは他のリーダを止めずに行える
+class ReaderPool implements AutoCloseable {
+  interface Listener {
+    void onArrival(String reader, long id, PollScheduler.Result result);
+    void onDeparture(String reader, long id);
+    default void onError(String reader, IOException e) {}
+  }
+
+  private static class Entry {
+    final AsyncReader reader;
+    final Poller poller;
+
+    Entry(AsyncReader reader, Poller poller) {
+      this.reader = reader;
+      this.poller = poller;
+    }
+  }
+
+  private final Logger log;
+  private final Function<ReaderSession,PollScheduler> schedulers;
+  private final Listener listener;
+  private final Object events = new Object(); //通知はこのロックで直列化する. 受け側はスレッドを意識しなくて良い
+  private final Map<String,Entry> entries = new LinkedHashMap<>();
+  private boolean closed;
+  private boolean silenced; //close() の後. events で守る
+
+  //schedulers はリーダ毎の PollScheduler を作る
+  ReaderPool(Logger log, Function<ReaderSession,PollScheduler> schedulers, Listener listener) {
+    this.log = log;
+    this.schedulers = schedulers;
+    this.listener = listener;
+  }
+
+  //name のリーダを開いてポーリングを始める. 既に有れば何もせず false
+  synchronized boolean attach(String name, ReaderSession.Opener opener) {
+    if(closed) throw new IllegalStateException("closed");
+    if(entries.containsKey(name)) return false;
+    ReaderSession session = new ReaderSession(opener, log);
+    AsyncReader reader = new AsyncReader(session, name);
+    reader.open(3000) //最初のカードを待つ前に初期化しておく
+            .exceptionally(e -> {
+              log.error(name + " open: " + e);
+              return null;
+            });
+    Poller poller = new Poller(schedulers.apply(session), reader, new Poller.Listener() {
+      @Override
+      public void onArrival(long id, PollScheduler.Result result) {
+        synchronized(events) {
+          if(!silenced) listener.onArrival(name, id, result);
+        }
+      }
+      @Override
+      public void onDeparture(long id) {
+        synchronized(events) {
+          if(!silenced) listener.onDeparture(name, id);
+        }
+      }
+      @Override
+      public void onError(IOException e) {
+        synchronized(events) {
+          if(!silenced) listener.onError(name, e);
+        }
+      }
+    });
+    entries.put(name, new Entry(reader, poller));
+    poller.start();
+    return true;
+  }
+
+  //name のリーダだけを止めて閉じる. 待たずに戻る
+  synchronized void detach(String name) {
+    Entry entry = entries.remove(name);
+    if(entry == null) return;
+    entry.poller.stop();
+    log.log(() -> String.format("%s poll cycle avg %.1fms max %.1fms (%d cycles)", name,
+            entry.poller.getAverageCycleNanos() / 1e6, entry.poller.getMaxCycleNanos() / 1e6, entry.poller.getCycles()));
+    entry.reader.close(); //セッションは I/O スレッドで閉じる
+  }
+
+  synchronized boolean contains(String name) {
+    return entries.containsKey(name);
+  }
+
+  synchronized Set<String> names() {
+    return new LinkedHashSet<>(entries.keySet());
+  }
+
+  //name のリーダの I/O スレッド. ポーリングの合間に他の操作を行う時に使う
+  synchronized AsyncReader reader(String name) {
+    Entry entry = entries.get(name);
+    return entry == null ? null : entry.reader;
+  }
+
+  //I/O スレッドの終わりは待たないが, 戻った後に listener は呼ばれない(通知中ならその終わりを待つ)
+  @Override
+  public void close() {
+    synchronized(events) {
+      silenced = true;
+    }
+    synchronized(this) {
+      closed = true;
+      for(String name : new ArrayList<>(entries.keySet())) detach(name);
+    }
+  }
+}
@@ -0,0 +1,122 @@
+package com.teratail.q_bqafusg2g5at35;
+
+import java.io.IOException;
+
+//リーダを開いたまま使い回す. 初期化済みの Device を保持し, エラーの後は次の利用時に開き直す
+class ReaderSession implements AutoCloseable {
+  interface Opener {
+    Transport open() throws IOException;
+  }
+  interface Operation<T> {
+    T apply(Device device) throws IOException;
+  }
+
+  private final Opener opener;
+  private final Logger log;
+  private final boolean owner; //false なら device は借り物で, 閉じも開き直しもしない
+  private Device device;
+  private String chipsetName; //再接続時はファームウェアを問い合わせない
+  private int reconnects = -1;
+  private RetryPolicy retry = new RetryPolicy(); //再接続をまたいでブレーカーの状態を持つ
+  private BlockCache blockCache;
+  private boolean closed;
+
+  ReaderSession(Opener opener, Logger log) {
+    this.opener = opener;
+    this.log = log;
+    this.owner = true;
+  }
+  private ReaderSession(Device device) {
+    this.opener = () -> { throw new IOException("not reconnectable"); };
+    this.log = null;
+    this.owner = false;
+    this.device = device;
+    this.chipsetName = device.chipsetName;
+    this.reconnects = 0;
+  }
+
+  //既に開いている device をそのまま使うセッション
+  static ReaderSession of(Device device) {
+    return new ReaderSession(device);
+  }
+
+  //初期化済みの Device. 切断されていれば開き直す
+  synchronized Device device() throws IOException {
+    if(closed) throw new IOException("session closed");
+    if(device == null) {
+      retry.check(); //失敗が続いている間は開き直さない
+      Transport transport = opener.open();
+      try {
+        device = new Device(transport, log, chipsetName, retry).setBlockCache(blockCache);
+      } catch(IOException | RuntimeException e) {
+        transport.close();
+        throw e;
+      }
+      chipsetName = device.chipsetName;
+      reconnects++;
+    }
+    return device;
+  }
+
+  //operation が USB やチップの異常で失敗したら Device を閉じ, 次の呼び出しで開き直す.
+  //カードが離れた等の CardException はリーダの異常ではないのでそのまま投げる
+  synchronized <T> T execute(Operation<T> operation) throws IOException {
+    Device device = device();
+    try {
+      return operation.apply(device);
+    } catch(CardException e) {
+      throw e;
+    } catch(IOException | RuntimeException e) {
+      disconnect();
+      throw e;
+    }
+  }
+
+  //開いている Device を閉じる. セッションは次の利用で開き直す
+  synchronized void disconnect() {
+    if(device == null || !owner) return;
+    try {
+      device.close();
+    } catch(Exception e) {
+      log.debug("close: " + e.getMessage());
+    }
+    device = null;
+  }
+
+  //次に開く Device から使う
+  synchronized ReaderSession setRetryPolicy(RetryPolicy retry) {
+    this.retry = retry;
+    return this;
+  }
+
+  //開いている Device と次に開く Device で使う
+  synchronized ReaderSession setBlockCache(BlockCache blockCache) {
+    this.blockCache = blockCache;
+    if(device != null && owner) device.setBlockCache(blockCache);
+    return this;
+  }
+
+  boolean isReconnectable() {
+    return owner;
+  }
+
+  synchronized boolean isConnected() {
+    return device != null;
+  }
+
+  synchronized String getChipsetName() {
+    return chipsetName;
+  }
+
+  //最初の接続以降に開き直した回数
+  synchronized int getReconnects() {
+    return Math.max(0, reconnects);
+  }
+
+  @Override
+  public synchronized void close() {
+    disconnect();
+    if(!owner) device = null;
+    closed = true;
+  }
+}
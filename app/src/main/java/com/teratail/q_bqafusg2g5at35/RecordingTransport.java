@@ -0,0 +1,132 @@
+package com.teratail.q_bqafusg2g5at35;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.*;
+
+//他の Transport を包み, 送受信をそのままトレースファイルへ追記する. 現場の不具合を持ち帰る用.
+//レコードはバッファに溜め, 溢れる時と flushInterval 毎と close() でファイルへ書く.
+//プロセスが落ちても失うのは最後の flushInterval の分だけ
+class RecordingTransport implements Transport {
+  static final int BUFFER_SIZE = 64 * 1024;
+
+  private final Transport transport;
+  private final FileChannel channel;
+  private final ByteBuffer buffer = ByteBuffer.allocateDirect(Math.max(BUFFER_SIZE, Trace.HEADER_LENGTH + Trace.RECORD_HEADER_LENGTH + 0xffff))
+          .order(ByteOrder.LITTLE_ENDIAN); //this で守る
+  private final ScheduledExecutorService flusher;
+  private long last = -1; //前のレコードの時刻 [ns]. 最初のレコードは 0 とする
+  private IOException failure; //タイマーでの書き込みの失敗. 次の append で投げる
+  private boolean closed;
+
+  RecordingTransport(Transport transport, File file) throws IOException {
+    this(transport, file, 1000);
+  }
+  //flushInterval[ms]
+  RecordingTransport(Transport transport, File file, long flushInterval) throws IOException {
+    if(flushInterval < 1) throw new IllegalArgumentException("flushInterval=" + flushInterval);
+    this.transport = transport;
+    this.channel = new FileOutputStream(file).getChannel();
+    buffer.put(Trace.MAGIC).put(Trace.VERSION).putLong(System.currentTimeMillis());
+    try {
+      flush();
+    } catch(IOException e) {
+      channel.close();
+      throw e;
+    }
+    flusher = Executors.newSingleThreadScheduledExecutor(r -> {
+      Thread thread = new Thread(r, "RecordingTransport");
+      thread.setDaemon(true);
+      return thread;
+    });
+    flusher.scheduleWithFixedDelay(this::flushQuietly, flushInterval, flushInterval, TimeUnit.MILLISECONDS);
+  }
+
+  @Override
+  public void setLogger(Logger log) {
+    transport.setLogger(log);
+  }
+
+  @Override
+  public void write(byte[] bytes) throws IOException {
+    write(bytes, bytes.length);
+  }
+  @Override
+  public void write(byte[] bytes, int length) throws IOException {
+    append(Trace.WRITE, bytes, 0, length);
+    transport.write(bytes, length);
+  }
+
+  @Override
+  public byte[] read(int timeout) throws IOException {
+    byte[] buffer = new byte[Frame.MAX_LENGTH];
+    int len = read(buffer, timeout);
+    return Arrays.copyOfRange(buffer, 0, len);
+  }
+  @Override
+  public int read(byte[] buffer, int offset, int timeout) throws IOException {
+    int len;
+    try {
+      len = transport.read(buffer, offset, timeout);
+    } catch(IOException e) {
+      byte[] message = String.valueOf(e.getMessage()).getBytes(StandardCharsets.UTF_8);
+      append(Trace.ERROR, message, 0, message.length);
+      throw e;
+    }
+    append(Trace.READ, buffer, offset, len);
+    return len;
+  }
+
+  private synchronized void append(byte type, byte[] data, int offset, int length) throws IOException {
+    if(length > 0xffff) throw new IOException("record too long: " + length);
+    if(closed) throw new IOException("recording closed");
+    if(failure != null) throw failure;
+    long now = System.nanoTime();
+    long micros = last < 0 ? 0 : Math.min(0xffffffffL, (now - last) / 1000);
+    last = now;
+    if(buffer.remaining() < Trace.RECORD_HEADER_LENGTH + length) flush();
+    buffer.put(type).putInt((int)micros).putShort((short)length).put(data, offset, length);
+  }
+
+  private synchronized void flush() throws IOException {
+    buffer.flip();
+    try {
+      while(buffer.hasRemaining()) channel.write(buffer);
+    } finally {
+      buffer.clear(); //書けなかった分は捨てる
+    }
+  }
+
+  private synchronized void flushQuietly() {
+    if(closed || failure != null || buffer.position() == 0) return;
+    try {
+      flush();
+    } catch(IOException e) {
+      failure = e;
+    }
+  }
+
+  @Override
+  public void close() {
+    flusher.shutdown();
+    try {
+      synchronized(this) {
+        if(!closed) {
+          closed = true;
+          if(failure == null) flush();
+        }
+      }
+    } catch(IOException ignore) {
+      //記録できなくても元の Transport は閉じる
+    } finally {
+      try {
+        channel.close();
+      } catch(IOException ignore) {
+      }
+      transport.close();
+    }
+  }
+}
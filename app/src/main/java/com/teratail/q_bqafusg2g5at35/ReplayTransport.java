@@ -0,0 +1,132 @@
+package com.teratail.q_bqafusg2g5at35;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+//トレースファイルを再生する Transport. 送信は記録と照合し, 受信は記録の間隔(の 1/speed)で返す.
+//speed=0 なら待たずに返す. ハードウェア無しで Chipset/Device の変更を実際のセッションで比べる用
+class ReplayTransport implements Transport {
+  private final MappedByteBuffer trace;
+  private final double speed;
+  private final long recorded; //記録開始時刻 [epoch ms]
+  private boolean strict = true;
+  private Logger log;
+  private long start = -1; //再生開始 [ns]
+  private long elapsed; //記録上の経過 [μs]
+  private int records, mismatches;
+
+  ReplayTransport(File file, double speed) throws IOException {
+    if(speed < 0) throw new IllegalArgumentException("speed=" + speed);
+    this.speed = speed;
+    try(FileChannel channel = new FileInputStream(file).getChannel()) {
+      trace = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+    }
+    trace.order(ByteOrder.LITTLE_ENDIAN);
+    byte[] magic = new byte[Trace.MAGIC.length];
+    if(trace.remaining() < Trace.HEADER_LENGTH) throw new IOException("not a trace: " + file);
+    trace.get(magic);
+    if(!Arrays.equals(magic, Trace.MAGIC) || trace.get() != Trace.VERSION) throw new IOException("not a trace: " + file);
+    recorded = trace.getLong();
+  }
+
+  //false なら記録と異なる送信も数えるだけで続ける
+  ReplayTransport setStrict(boolean strict) {
+    this.strict = strict;
+    return this;
+  }
+
+  long getRecordedTime() { return recorded; }
+  int getRecords() { return records; }
+  int getMismatches() { return mismatches; }
+  boolean isFinished() { return !trace.hasRemaining(); }
+
+  @Override
+  public void setLogger(Logger log) {
+    this.log = log;
+  }
+
+  @Override
+  public void write(byte[] bytes) throws IOException {
+    write(bytes, bytes.length);
+  }
+  @Override
+  public void write(byte[] bytes, int length) throws IOException {
+    if(log != null && log.isEnabled(Logger.Level.DEBUG)) log.debug(">>>> " + Bytes.toString(bytes, 0, length));
+    if(start < 0) start = System.nanoTime();
+    if(peek() != Trace.WRITE) {
+      mismatch("unexpected write");
+      return;
+    }
+    int len = next();
+    boolean same = len == length;
+    for(int i=0; same && i<len; i++) same = trace.get(trace.position() + i) == bytes[i];
+    trace.position(trace.position() + len);
+    if(!same) mismatch("different write");
+  }
+
+  @Override
+  public byte[] read(int timeout) throws IOException {
+    byte[] buffer = new byte[Frame.MAX_LENGTH];
+    int len = read(buffer, timeout);
+    return Arrays.copyOfRange(buffer, 0, len);
+  }
+  @Override
+  public int read(byte[] buffer, int offset, int timeout) throws IOException {
+    if(start < 0) start = System.nanoTime();
+    byte type = peek();
+    if(type != Trace.READ && type != Trace.ERROR) {
+      if(type == 0) throw new IOException("end of trace");
+      throw new IOException("receive error: len=-1"); //記録には無い受信はタイムアウト扱い
+    }
+    int len = next();
+    await();
+    if(type == Trace.ERROR) {
+      byte[] message = new byte[len];
+      trace.get(message);
+      throw new IOException(new String(message, StandardCharsets.UTF_8));
+    }
+    if(len > buffer.length - offset) throw new IOException("receive error: len=" + len);
+    trace.get(buffer, offset, len);
+    if(log != null && log.isEnabled(Logger.Level.DEBUG)) log.debug("<<<< " + Bytes.toString(buffer, offset, offset + len));
+    return len;
+  }
+
+  //次のレコードの種別. 終わりなら 0
+  private byte peek() {
+    return trace.hasRemaining() ? trace.get(trace.position()) : 0;
+  }
+
+  //レコードヘッダを読み, データ長を返す
+  private int next() {
+    trace.get();
+    elapsed += trace.getInt() & 0xffffffffL;
+    records++;
+    return trace.getShort() & 0xffff;
+  }
+
+  //記録上の時刻まで待つ
+  private void await() throws IOException {
+    if(speed == 0) return;
+    long target = start + (long)(elapsed * 1000 / speed);
+    long wait = target - System.nanoTime();
+    if(wait <= 0) return;
+    try {
+      Thread.sleep(wait / 1000000L, (int)(wait % 1000000L));
+    } catch(InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("interrupted", e);
+    }
+  }
+
+  private void mismatch(String message) throws IOException {
+    mismatches++;
+    if(strict) throw new IOException(message + " at record " + records);
+  }
+
+  @Override
+  public void close() {
+  }
+}
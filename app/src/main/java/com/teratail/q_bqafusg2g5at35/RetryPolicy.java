@@ -0,0 +1,74 @@
+package com.teratail.q_bqafusg2g5at35;
+
+import java.io.IOException;
+
+//Chipset のコマンドが失敗した時の再送回数/期限と, 失敗が続いた時に暫く諦めるサーキットブレーカー.
+//ブレーカーの状態は再接続をまたいで持つので, ReaderSession が 1 つ持って Device へ渡す
+class RetryPolicy {
+  static final RetryPolicy NONE = new RetryPolicy(0, 0, 0, 0); //再送もブレーカーも無し(状態を持たない)
+
+  private final int retries; //1 コマンドあたりの再送回数
+  private final int deadline; //[ms] 最初の送信からこの時間を過ぎたら再送しない. 0 は無制限
+  private final int threshold; //連続してこの回数コマンドが失敗したら開く. 0 はブレーカー無し
+  private final int cooldown; //[ms] 開いている時間. 過ぎたら 1 回だけ試す
+
+  private int failures;
+  private long openUntil; //[ns]
+  private long trips;
+
+  RetryPolicy() {
+    this(2, 50, 5, 1000);
+  }
+  RetryPolicy(int retries, int deadline, int threshold, int cooldown) {
+    if(retries < 0) throw new IllegalArgumentException("retries=" + retries);
+    if(deadline < 0) throw new IllegalArgumentException("deadline=" + deadline);
+    if(threshold < 0) throw new IllegalArgumentException("threshold=" + threshold);
+    if(cooldown < 0) throw new IllegalArgumentException("cooldown=" + cooldown);
+    this.retries = retries;
+    this.deadline = deadline;
+    this.threshold = threshold;
+    this.cooldown = cooldown;
+  }
+
+  //attempt 回目(0 始まり)の失敗の後, start[ns] に始めたコマンドを送り直して良いか
+  boolean canRetry(int attempt, long start) {
+    if(attempt >= retries) return false;
+    return deadline == 0 || System.nanoTime() - start < deadline * 1000000L;
+  }
+
+  //attempt 回目の送信で待って良い USB の受信時間[ms]. 期限の残りを残りの試行で分け, timeout を超えない.
+  //冷えた Chipset の長い受信タイムアウトで 1 回目が期限を使い切らない様にする
+  int readTimeout(int attempt, long start, int timeout) {
+    if(deadline == 0) return timeout;
+    long left = deadline - (System.nanoTime() - start) / 1000000L;
+    int tries = Math.max(1, retries - attempt + 1);
+    return (int)Math.max(1, Math.min(timeout, left / tries));
+  }
+
+  synchronized boolean isOpen() {
+    return threshold > 0 && failures >= threshold && System.nanoTime() - openUntil < 0;
+  }
+
+  //開いていれば送らずに失敗させる
+  void check() throws IOException {
+    if(isOpen()) throw new IOException("circuit open");
+  }
+
+  synchronized void onSuccess() {
+    failures = 0;
+  }
+
+  //再送しても駄目だった
+  synchronized void onFailure() {
+    if(threshold == 0) return;
+    if(++failures >= threshold) {
+      if(failures == threshold) trips++;
+      openUntil = System.nanoTime() + cooldown * 1000000L;
+    }
+  }
+
+  //ブレーカーが開いた回数
+  synchronized long getTrips() {
+    return trips;
+  }
+}
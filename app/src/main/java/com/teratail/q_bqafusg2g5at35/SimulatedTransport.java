@@ -0,0 +1,580 @@
+package com.teratail.q_bqafusg2g5at35;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.*;
+
+//RC-S380(NFC Port-100) をプロセス内で模擬する Transport. 実機無しで Chipset/Device を動かす為のもの.
+//QueuedTransport で包めば IN 転送を出しておく受信を模擬する
+class SimulatedTransport implements Transport, QueuedTransport.Endpoint {
+  static class Card {
+    final byte[] idm, pmm;
+    final int systemCode;
+    private final Map<Integer,byte[][]> services = new HashMap<>(); //サービスコード -> ブロックデータ
+    private int maxBlocks = 15;
+
+    Card(byte[] idm, byte[] pmm, int systemCode) {
+      if(idm.length != 8) throw new IllegalArgumentException("idm.length=" + idm.length);
+      if(pmm.length != 8) throw new IllegalArgumentException("pmm.length=" + pmm.length);
+      this.idm = idm.clone();
+      this.pmm = pmm.clone();
+      this.systemCode = systemCode & 0xffff;
+    }
+
+    Card setBlocks(int service_code, byte[][] blocks) {
+      services.put(service_code, blocks);
+      return this;
+    }
+    Card setMaxBlocks(int maxBlocks) {
+      this.maxBlocks = maxBlocks;
+      return this;
+    }
+
+    //Read Without Encryption. 応答(長さバイトを除く)を返す
+    byte[] read_without_encryption(byte[] req) {
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      out.write(0x07);
+      out.write(idm, 0, 8);
+      int n = req[9] & 0xff;
+      int[] codes = new int[n];
+      for(int i=0; i<n; i++) codes[i] = (req[10+i*2] & 0xff) | (req[11+i*2] & 0xff) << 8;
+      int pos = 10 + n*2;
+      int m = req[pos++] & 0xff;
+      if(m > maxBlocks) return error(out, 0xa2);
+      ByteArrayOutputStream data = new ByteArrayOutputStream();
+      for(int i=0; i<m; i++) {
+        int head = req[pos++] & 0xff;
+        int block = req[pos++] & 0xff;
+        if((head & 0x80) == 0) block |= (req[pos++] & 0xff) << 8;
+        byte[][] blocks = services.get(codes[head & 0x0f]);
+        if(blocks == null) return error(out, 0xa6);
+        if(block >= blocks.length) return error(out, 0xa8);
+        data.write(blocks[block], 0, 16);
+      }
+      out.write(0);
+      out.write(0);
+      out.write(m);
+      out.write(data.toByteArray(), 0, data.size());
+      return out.toByteArray();
+    }
+    private static byte[] error(ByteArrayOutputStream out, int status2) {
+      out.write(0x01);
+      out.write(status2);
+      return out.toByteArray();
+    }
+
+    boolean matches(int sc) {
+      //0xff はワイルドカード
+      int hi = sc >> 8, lo = sc & 0xff;
+      return (hi == 0xff || hi == systemCode >> 8) && (lo == 0xff || lo == (systemCode & 0xff));
+    }
+  }
+
+  static class TypeACard {
+    final byte[] uid, sens_res;
+    final byte sel_res;
+
+    TypeACard(byte[] uid, byte[] sens_res, int sel_res) {
+      if(uid.length != 4 && uid.length != 7 && uid.length != 10) throw new IllegalArgumentException("uid.length=" + uid.length);
+      this.uid = uid.clone();
+      this.sens_res = sens_res.clone();
+      this.sel_res = (byte)sel_res;
+    }
+
+    //カスケードレベル level(0..2) の SDD_RES (UID 片 4 バイト + BCC). 該当しなければ null
+    byte[] sdd_res(int level) {
+      int levels = uid.length == 4 ? 1 : uid.length == 7 ? 2 : 3;
+      if(level >= levels) return null;
+      byte[] res = new byte[5];
+      if(level < levels-1) {
+        res[0] = (byte)0x88; //CT
+        System.arraycopy(uid, level*3, res, 1, 3);
+      } else {
+        System.arraycopy(uid, level*3, res, 0, 4);
+      }
+      res[4] = (byte)(res[0] ^ res[1] ^ res[2] ^ res[3]);
+      return res;
+    }
+    byte sel_res(int level) {
+      int levels = uid.length == 4 ? 1 : uid.length == 7 ? 2 : 3;
+      return level < levels-1 ? 0x04 : sel_res;
+    }
+  }
+
+  static class TypeBCard {
+    final byte[] sensb_res;
+
+    TypeBCard(byte[] pupi, byte[] application_data, byte[] protocol_info) {
+      sensb_res = Bytes.join(Bytes.join(Bytes.of(0x50), pupi), Bytes.join(application_data, protocol_info));
+      if(sensb_res.length != 12) throw new IllegalArgumentException("sensb_res.length=" + sensb_res.length);
+    }
+  }
+
+  //ターゲットモード(TgCommRF)の相手になるリーダ. 直前の応答(長さバイトから. 送らなかったら null)を受け取り,
+  //次に送るコマンド(長さバイトから)を返す. null なら何も送らない(受信タイムアウト)
+  interface Initiator {
+    byte[] next(byte[] response);
+  }
+
+  //USB 上の異常. 次のコマンドの応答に 1 回だけ起こす
+  enum Fault {
+    DROP_RESPONSE, //応答(DATA)が届かない
+    CORRUPT_RESPONSE, //応答のデータのチェックサムが合わない
+    STALE_RESPONSE, //前のコマンドの応答が ACK より先に届く
+  }
+
+  private static class Pending {
+    final byte[] frame;
+    final long readyAt; //[ns]
+
+    Pending(byte[] frame, long readyAt) {
+      this.frame = frame;
+      this.readyAt = readyAt;
+    }
+  }
+
+  private static final int CRC_ERROR = 0x00000004;
+  private static final int COLLISION_ERROR = 0x00000008;
+  private static final int RF_OFF_ERROR = 0x00000400;
+
+  private final List<Card> cards = new ArrayList<>();
+  private final List<TypeACard> typeACards = new ArrayList<>();
+  private final List<TypeBCard> typeBCards = new ArrayList<>();
+  private final Deque<Pending> pending = new ArrayDeque<>();
+  private final Deque<Integer> injectedErrors = new ArrayDeque<>();
+  private final Deque<Fault> injectedFaults = new ArrayDeque<>();
+  private final Deque<ByteBuffer> queued = new ArrayDeque<>(); //QueuedTransport が出した IN 転送
+  private Initiator initiator;
+  private int initiatorLatency = 0; //[ms] 応答を受けてから次のコマンドを送るまで
+  private final Random random;
+  private Logger log;
+
+  private int latency = 0; //[ms] コマンド受信から応答(DATA)までの遅延
+  private double timeScale = 1.0; //RF タイムアウト待ちの倍率. 0 で待たない
+  private double errorRate = 0;
+  private int errorStatus = 0;
+
+  private final int[] protocol = new int[0x14]; //InSetProtocol の設定値
+  private boolean rfOn = false;
+  private int transferSize = Integer.MAX_VALUE; //1 回の read で返す最大バイト数
+  private boolean coalesce = false; //true なら続くフレームを 1 回の read にまとめる
+  private byte[] partial; //返しかけのフレーム
+  private int partialPos;
+  private int rfType = 0; //InSetRF の送信側種別 1:F 2:A 3:B
+  private List<TypeACard> selectedA = Collections.emptyList(); //直前のカスケードレベルで選ばれたカード. UID 片が同じなら複数
+  private boolean closed = false;
+
+  SimulatedTransport() {
+    this(new Random());
+  }
+  SimulatedTransport(Random random) {
+    this.random = random;
+  }
+
+  synchronized SimulatedTransport addCard(Card card) {
+    cards.add(card);
+    return this;
+  }
+  synchronized SimulatedTransport addCard(TypeACard card) {
+    typeACards.add(card);
+    return this;
+  }
+  synchronized SimulatedTransport addCard(TypeBCard card) {
+    typeBCards.add(card);
+    return this;
+  }
+  synchronized void removeCard(Object card) {
+    cards.remove(card);
+    typeACards.remove(card);
+    typeBCards.remove(card);
+  }
+  synchronized void clearCards() {
+    cards.clear();
+    typeACards.clear();
+    typeBCards.clear();
+  }
+
+  synchronized SimulatedTransport setLatency(int latency) {
+    if(latency < 0) throw new IllegalArgumentException("latency=" + latency);
+    this.latency = latency;
+    return this;
+  }
+  synchronized SimulatedTransport setTimeScale(double timeScale) {
+    if(timeScale < 0) throw new IllegalArgumentException("timeScale=" + timeScale);
+    this.timeScale = timeScale;
+    return this;
+  }
+  //受信をフレームの途中で分割したり(transferSize), 複数フレームを連結したり(coalesce)する
+  synchronized SimulatedTransport setTransferShaping(int transferSize, boolean coalesce) {
+    if(transferSize < 1) throw new IllegalArgumentException("transferSize=" + transferSize);
+    this.transferSize = transferSize;
+    this.coalesce = coalesce;
+    return this;
+  }
+  //InCommRF が rate の確率で status (CommunicationException のビット) を返す
+  synchronized SimulatedTransport setErrorRate(double rate, int status) {
+    this.errorRate = rate;
+    this.errorStatus = status;
+    return this;
+  }
+  //次の InCommRF で status を返す
+  synchronized void injectError(int status) {
+    injectedErrors.add(status);
+  }
+
+  synchronized SimulatedTransport setInitiator(Initiator initiator, int latency) {
+    if(latency < 0) throw new IllegalArgumentException("latency=" + latency);
+    this.initiator = initiator;
+    this.initiatorLatency = latency;
+    return this;
+  }
+
+  synchronized void injectFault(Fault fault) {
+    injectedFaults.add(fault);
+  }
+
+  @Override
+  public void setLogger(Logger log) {
+    this.log = log;
+  }
+
+  @Override
+  public synchronized void write(byte[] bytes) throws IOException {
+    if(log != null && log.isEnabled(Logger.Level.DEBUG)) log.debug(">>>> " + Bytes.toString(bytes));
+    if(closed) throw new IOException("send error");
+    if(Bytes.allEquals(bytes, 0, 0, 0xff, 0, 0xff, 0)) { //ACK は処理中コマンドの取り消し
+      pending.clear();
+      partial = null;
+      return;
+    }
+    long now = System.nanoTime();
+    Frame req;
+    try {
+      req = Frame.createResponce(bytes);
+    } catch(IllegalStateException e) {
+      req = null;
+    }
+    byte[] data = req != null && req.isData() ? req.getData() : null;
+    if(data == null || data.length < 2 || (data[0] & 0xff) != 0xd6) {
+      pending.add(new Pending(Bytes.of(0, 0, 0xff, 0xff, 0xff), now));
+      notifyAll();
+      return;
+    }
+    Fault fault = injectedFaults.poll();
+    if(fault == Fault.STALE_RESPONSE) {
+      pending.add(new Pending(Frame.createRequest(Bytes.of(0xd7, 0x07, 0)).frame, now));
+    }
+    pending.add(new Pending(Chipset.ACK, now));
+
+    long[] delay = {latency};
+    byte[] rsp = execute(data[1] & 0xff, Arrays.copyOfRange(data, 2, data.length), delay);
+    byte[] frame = Frame.createRequest(Bytes.join(Bytes.of(0xd7, (data[1] & 0xff) + 1), rsp)).frame;
+    if(fault == Fault.CORRUPT_RESPONSE) frame[frame.length-2] ^= 0x5a;
+    if(fault != Fault.DROP_RESPONSE) pending.add(new Pending(frame, now + delay[0] * 1000000L));
+    notifyAll();
+  }
+
+  @Override
+  public void write(byte[] bytes, int length) throws IOException {
+    write(Arrays.copyOf(bytes, length));
+  }
+
+  @Override
+  public byte[] read(int timeout) throws IOException {
+    byte[] buffer = new byte[Frame.HEADER_LENGTH + 0x10000 + 2];
+    int len = read(buffer, 0, timeout);
+    return Arrays.copyOf(buffer, len);
+  }
+
+  @Override
+  public synchronized int read(byte[] buffer, int offset, int timeout) throws IOException {
+    int n = receive(buffer, offset, timeout);
+    if(n < 0) throw new IOException("receive error: len=-1");
+    return n;
+  }
+
+  //QueuedTransport.Endpoint として. 出された buffer を出した順に受信で埋める
+  @Override
+  public synchronized void queue(ByteBuffer buffer) throws IOException {
+    if(closed) throw new IOException("UsbRequest.queue is false");
+    queued.add(buffer);
+  }
+
+  @Override
+  public synchronized ByteBuffer await(int timeout) throws IOException {
+    ByteBuffer buffer = queued.peek();
+    if(buffer == null) throw new IOException("receive error: requestWait is null");
+    byte[] bytes = new byte[buffer.remaining()];
+    int n = receive(bytes, 0, timeout);
+    if(n < 0) {
+      if(closed) throw new IOException("receive error: requestWait is null");
+      return null;
+    }
+    queued.poll();
+    buffer.put(bytes, 0, n);
+    return buffer;
+  }
+
+  //タイムアウトか閉じていたら -1
+  private int receive(byte[] buffer, int offset, int timeout) throws IOException {
+    long deadline = timeout <= 0 ? Long.MAX_VALUE : System.nanoTime() + timeout * 1000000L;
+    while(partial == null) {
+      if(closed) return -1;
+      long now = System.nanoTime();
+      Pending p = pending.peek();
+      if(p != null && p.readyAt <= now) {
+        pending.poll();
+        partial = p.frame;
+        partialPos = 0;
+        break;
+      }
+      if(now >= deadline) return -1;
+      long wake = p == null ? deadline : Math.min(deadline, p.readyAt);
+      long ms = Math.max(1, (wake - now) / 1000000L);
+      try {
+        wait(ms);
+      } catch(InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new IOException("interrupted", e);
+      }
+    }
+
+    int limit = Math.min(buffer.length - offset, transferSize), n = 0;
+    while(n < limit && partial != null) {
+      int c = Math.min(limit - n, partial.length - partialPos);
+      System.arraycopy(partial, partialPos, buffer, offset + n, c);
+      n += c;
+      partialPos += c;
+      if(partialPos == partial.length) {
+        partial = null;
+        Pending p = pending.peek();
+        if(coalesce && p != null && p.readyAt <= System.nanoTime()) { //準備できている次のフレームも同じ転送で返す
+          pending.poll();
+          partial = p.frame;
+          partialPos = 0;
+        }
+      }
+    }
+    if(log != null && log.isEnabled(Logger.Level.DEBUG)) log.debug("<<<< " + Bytes.toString(buffer, offset, offset + n));
+    return n;
+  }
+
+  @Override
+  public synchronized void close() {
+    closed = true;
+    pending.clear();
+    queued.clear();
+    partial = null;
+    notifyAll();
+  }
+
+  private byte[] execute(int code, byte[] data, long[] delay) {
+    switch(code) {
+      case 0x00: //InSetRF
+        rfType = data.length > 0 ? data[0] : 0;
+        rfOn = true;
+        return Bytes.of(0);
+      case 0x02: //InSetProtocol
+        for(int i=0; i+1<data.length; i+=2) {
+          if((data[i] & 0xff) < protocol.length) protocol[data[i]] = data[i+1] & 0xff;
+        }
+        return Bytes.of(0);
+      case 0x06: //SwitchRF
+        rfOn = data.length > 0 && data[0] != 0;
+        return Bytes.of(0);
+      case 0x04: //InCommRF
+        return in_comm_rf(data, delay);
+      case 0x20: //GetFirmwareVersion
+        return Bytes.of(0x11, 0x01);
+      case 0x22: //GetPDDataVersion
+        return Bytes.of(0x00, 0x01);
+      case 0x40: //TgSetRF
+        rfType = 0;
+        return Bytes.of(0);
+      case 0x48: //TgCommRF
+        return tg_comm_rf(data, delay);
+      default: //InSetProtocol, SetCommandType 等は成功だけ返す
+        return Bytes.of(0);
+    }
+  }
+
+  private byte[] in_comm_rf(byte[] data, long[] delay) {
+    int timeout = data.length >= 2 ? Bytes.getShortInLittleEndianFrom(data, 0) & 0xffff : 0; //[0.1ms]
+    byte[] payload = Arrays.copyOfRange(data, Math.min(2, data.length), data.length);
+
+    Integer status = injectedErrors.poll();
+    if(status == null && errorRate > 0 && random.nextDouble() < errorRate) status = errorStatus;
+    if(status != null && status != 0) return status(status, null);
+    if(!rfOn) return status(RF_OFF_ERROR, null);
+
+    byte[] frame = null;
+    if(rfType == 1 && payload.length >= 6 && payload[1] == 0x00) {
+      int[] collision = {0};
+      frame = sensf_res(payload, collision);
+      if(collision[0] != 0) return status(collision[0], frame);
+    }
+    if(rfType == 1 && payload.length >= 12 && payload[1] == 0x06) {
+      for(Card card : cards) {
+        if(!Arrays.equals(Arrays.copyOfRange(payload, 2, 10), card.idm)) continue;
+        byte[] res = card.read_without_encryption(Arrays.copyOfRange(payload, 1, payload.length));
+        frame = Bytes.join(Bytes.of(res.length+1), res);
+      }
+    }
+    if(rfType == 2) {
+      int[] collision = {0, 0};
+      frame = tta_res(payload, collision);
+      if(collision[0] != 0) return status(collision[0], frame, collision[1]);
+    }
+    if(rfType == 3 && payload.length >= 3 && payload[0] == 0x05) {
+      if(typeBCards.size() > 1) return status(COLLISION_ERROR, null);
+      if(!typeBCards.isEmpty()) frame = typeBCards.get(0).sensb_res.clone();
+    }
+    if(frame == null) {
+      delay[0] += Math.round(timeout / 10.0 * timeScale);
+      return status(CommunicationException.RECEIVE_TIMEOUT_ERROR, null);
+    }
+    return status(0, frame);
+  }
+
+  //各カードは 0..TSN のスロットを乱数で選ぶ. 同じスロットに複数居れば壊れる(CRC_ERROR)
+  //連続受信モードなら全スロット分を連結して返し, そうでなければ最初のスロットだけ
+  private byte[] sensf_res(byte[] sensf_req, int[] collision) {
+    int sc = (sensf_req[2] & 0xff) << 8 | (sensf_req[3] & 0xff);
+    int rc = sensf_req[4] & 0xff;
+    int slots = (sensf_req[5] & 0xff) + 1;
+    boolean crm = protocol[0x0f] != 0;
+
+    List<List<Card>> bySlot = new ArrayList<>();
+    for(int i=0; i<slots; i++) bySlot.add(new ArrayList<>());
+    for(Card card : cards) {
+      if(card.matches(sc)) bySlot.get(random.nextInt(slots)).add(card);
+    }
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    for(List<Card> slot : bySlot) {
+      if(slot.isEmpty()) continue;
+      if(slot.size() > 1) {
+        collision[0] |= CRC_ERROR;
+        if(crm) continue;
+        return null;
+      }
+      Card card = slot.get(0);
+      int len = rc == 1 ? 20 : 18;
+      byte[] frame = new byte[len];
+      frame[0] = (byte)len;
+      frame[1] = 0x01;
+      System.arraycopy(card.idm, 0, frame, 2, 8);
+      System.arraycopy(card.pmm, 0, frame, 10, 8);
+      if(rc == 1) {
+        frame[18] = (byte)(card.systemCode >> 8);
+        frame[19] = (byte)card.systemCode;
+      }
+      out.write(frame, 0, len);
+      if(!crm) break;
+    }
+    return out.size() == 0 ? null : out.toByteArray();
+  }
+
+  //SDD_REQ は NVB で示したビットまでが一致するカードが残りを返す. 返す値が分かれれば衝突(COLLISION_ERROR)で,
+  //衝突したビットの手前までを返し collision[1] に最後のバイトの有効ビット数(0 は 8)を入れる.
+  //応答の先頭バイトは送られたビットも含めたそのまま. SEL_REQ は CRC_A を自前で付けたもの(9 バイト)も受ける.
+  //SEL_REQ に一致したカードは全て次のカスケードレベルに進むので, そこでも衝突し得る
+  private byte[] tta_res(byte[] req, int[] collision) {
+    if(req.length == 1 && (req[0] == 0x26 || req[0] == 0x52)) { //SENS_REQ/ALL_REQ
+      if(typeACards.isEmpty()) return null;
+      selectedA = Collections.emptyList();
+      byte[] sens_res = new byte[2];
+      for(TypeACard card : typeACards) { //重なったビットは OR になる
+        sens_res[0] |= card.sens_res[0];
+        sens_res[1] |= card.sens_res[1];
+      }
+      return sens_res;
+    }
+    int level = req.length >= 2 ? ((req[0] & 0xff) - 0x93) / 2 : -1;
+    if(level < 0 || level > 2) return null;
+    List<TypeACard> candidates = level == 0 ? typeACards : selectedA;
+
+    if(req[1] == 0x70 && (req.length == 7 || req.length == 9)) { //SEL_REQ
+      if(req.length == 9 && Bytes.crcA(req, 0, 7) != ((req[7] & 0xff) | (req[8] & 0xff) << 8)) return null;
+      List<TypeACard> selected = new ArrayList<>();
+      for(TypeACard card : candidates) {
+        byte[] sdd_res = card.sdd_res(level);
+        if(sdd_res != null && Bytes.equals(req, 2, toInts(sdd_res))) selected.add(card);
+      }
+      selectedA = selected;
+      if(selected.isEmpty()) return null;
+      byte[] sel_res = {selected.get(0).sel_res(level)};
+      if(protocol[0x02] != 0) return sel_res; //チップが CRC を確かめて外す
+      int crc = Bytes.crcA(sel_res, 0, 1);
+      return Bytes.of(sel_res[0] & 0xff, crc & 0xff, crc >> 8);
+    }
+
+    int nvb = req[1] & 0xff, bytes = (nvb >> 4) - 2, bits = nvb & 0x0f;
+    if(bytes < 0 || bytes > 4 || bits > 7 || req.length != 2 + bytes + (bits > 0 ? 1 : 0)) return null;
+    int known = bytes * 8 + bits;
+    byte[] found = null;
+    int at = 40; //最初に値が分かれたビット
+    for(TypeACard card : candidates) {
+      byte[] sdd_res = card.sdd_res(level);
+      if(sdd_res == null) continue;
+      boolean match = true;
+      for(int i=0; match && i<known; i++) {
+        match = ((sdd_res[i/8] ^ req[2 + i/8]) & (1 << (i%8))) == 0;
+      }
+      if(!match) continue;
+      if(found == null) {
+        found = sdd_res;
+        continue;
+      }
+      for(int i=known; i<at; i++) {
+        if(((found[i/8] ^ sdd_res[i/8]) & (1 << (i%8))) != 0) at = i;
+      }
+    }
+    if(found == null) return null;
+    if(at == 40) return Arrays.copyOfRange(found, bytes, 5);
+    collision[0] |= COLLISION_ERROR;
+    collision[1] = at % 8;
+    byte[] res = Arrays.copyOfRange(found, bytes, (at + 7) / 8);
+    if(at % 8 != 0) res[res.length-1] &= (1 << (at % 8)) - 1;
+    return res;
+  }
+
+  private static int[] toInts(byte[] bytes) {
+    int[] ints = new int[bytes.length];
+    for(int i=0; i<bytes.length; i++) ints[i] = bytes[i] & 0xff;
+    return ints;
+  }
+
+  //応答は 通信方式(1) 不明(2) status(4) 受信フレーム
+  private byte[] tg_comm_rf(byte[] data, long[] delay) {
+    if(data.length < Chipset.TG_COMM_RF_PARAMS) return tg_status(CommunicationException.RECEIVE_TIMEOUT_ERROR, null);
+    int recvTimeout = Bytes.getShortInLittleEndianFrom(data, Chipset.TG_COMM_RF_PARAMS - 2) & 0xffff; //[ms]
+    byte[] transmit = data.length > Chipset.TG_COMM_RF_PARAMS ? Arrays.copyOfRange(data, Chipset.TG_COMM_RF_PARAMS, data.length) : null;
+    byte[] command = initiator == null ? null : initiator.next(transmit);
+    if(command == null) {
+      delay[0] += Math.round(recvTimeout * timeScale);
+      return tg_status(CommunicationException.RECEIVE_TIMEOUT_ERROR, null);
+    }
+    delay[0] += initiatorLatency;
+    return tg_status(0, command);
+  }
+
+  private static byte[] tg_status(int status, byte[] frame) {
+    byte[] res = new byte[7 + (frame == null ? 0 : frame.length)];
+    res[0] = 12; //212F
+    for(int i=0; i<4; i++) res[3+i] = (byte)(status >> (8 * i));
+    if(frame != null) System.arraycopy(frame, 0, res, 7, frame.length);
+    return res;
+  }
+
+  private static byte[] status(int status, byte[] frame) {
+    return status(status, frame, 0);
+  }
+  //lastBits は最後のバイトの有効ビット数(0 は 8). 衝突の時だけ使う
+  private static byte[] status(int status, byte[] frame, int lastBits) {
+    byte[] res = new byte[5 + (frame == null ? 0 : frame.length)];
+    for(int i=0; i<4; i++) res[i] = (byte)(status >> (8 * i));
+    res[4] = (byte)lastBits;
+    if(frame != null) System.arraycopy(frame, 0, res, 5, frame.length);
+    return res;
+  }
+}
@@ -0,0 +1,131 @@
+package com.teratail.q_bqafusg2g5at35;
+
+import java.util.Arrays;
+
+//ID(IDm 等を long にしたもの) -> 最後に見た時刻 の開番地法ハッシュ表. ttl[ms] を過ぎたものは無いものとして扱う.
+//ボクシングも文字列化もしないのでポーリング毎に呼んで良い. スレッドセーフではない
+class TapCache {
+  private final int capacity;
+  private final long ttl;
+  private final long[] keys;
+  private final long[] times; //[ms]
+  private final boolean[] used;
+  private final int mask;
+  private int size;
+
+  TapCache(int capacity, long ttl) {
+    if(capacity < 1) throw new IllegalArgumentException("capacity=" + capacity);
+    if(ttl < 0) throw new IllegalArgumentException("ttl=" + ttl);
+    this.capacity = capacity;
+    this.ttl = ttl;
+    int slots = Integer.highestOneBit(capacity * 2 - 1) << 1; //使用率 50% 以下
+    keys = new long[slots];
+    times = new long[slots];
+    used = new boolean[slots];
+    mask = slots - 1;
+  }
+
+  static long now() {
+    return System.nanoTime() / 1000000L;
+  }
+
+  //新しいタッチなら true. ttl 以内に見ていれば false. どちらも時刻を now に更新する(居続ける限り抑止)
+  boolean offer(long id) {
+    return offer(id, now());
+  }
+  boolean offer(long id, long now) {
+    int i = find(id);
+    if(i >= 0) {
+      boolean fresh = now - times[i] > ttl;
+      times[i] = now;
+      return fresh;
+    }
+    if(size == capacity && evictExpired(now) == 0) evictOldest();
+    i = slot(id);
+    while(used[i]) i = (i + 1) & mask;
+    keys[i] = id;
+    times[i] = now;
+    used[i] = true;
+    size++;
+    return true;
+  }
+
+  //ttl 以内に見たか. 時刻は更新しない
+  boolean contains(long id) {
+    return contains(id, now());
+  }
+  boolean contains(long id, long now) {
+    int i = find(id);
+    return i >= 0 && now - times[i] <= ttl;
+  }
+
+  boolean remove(long id) {
+    int i = find(id);
+    if(i < 0) return false;
+    delete(i);
+    return true;
+  }
+
+  int size() {
+    return size;
+  }
+
+  void clear() {
+    Arrays.fill(used, false);
+    size = 0;
+  }
+
+  private static int hash(long id) {
+    long h = id * 0x9e3779b97f4a7c15L; //IDm の上位はメーカーコードで偏るので混ぜる
+    return (int)(h ^ (h >>> 32));
+  }
+
+  private int slot(long id) {
+    return hash(id) & mask;
+  }
+
+  private int find(long id) {
+    for(int i = slot(id); used[i]; i = (i + 1) & mask) {
+      if(keys[i] == id) return i;
+    }
+    return -1;
+  }
+
+  private int evictExpired(long now) {
+    int removed = 0;
+    for(int i=0; i<keys.length; ) {
+      if(used[i] && now - times[i] > ttl) {
+        delete(i); //詰めた要素が i に来るので i は進めない
+        removed++;
+      } else {
+        i++;
+      }
+    }
+    return removed;
+  }
+
+  private void evictOldest() {
+    int oldest = -1;
+    for(int i=0; i<keys.length; i++) {
+      if(used[i] && (oldest < 0 || times[i] < times[oldest])) oldest = i;
+    }
+    delete(oldest);
+  }
+
+  //後ろの要素を詰めて探索の連鎖を保つ (墓標は使わない)
+  private void delete(int hole) {
+    used[hole] = false;
+    size--;
+    for(int i = (hole + 1) & mask; used[i]; i = (i + 1) & mask) {
+      int home = slot(keys[i]);
+      //home が (hole, i] の外にあれば hole へ移せる
+      if(((i - home) & mask) >= ((i - hole) & mask)) {
+        keys[hole] = keys[i];
+        times[hole] = times[i];
+        used[hole] = true;
+        used[i] = false;
+        hole = i;
+      }
+    }
+  }
+}
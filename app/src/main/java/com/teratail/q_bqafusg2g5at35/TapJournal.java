@@ -0,0 +1,427 @@
+package com.teratail.q_bqafusg2g5at35;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.zip.CRC32;
+
+//検出したカードを追記だけのファイルに残す. 1 件は固定長で, 通し番号から位置が決まる
+//  時刻[epoch ms](8) ID(8) PMm(8) 方式(4) リーダ名の末尾(32) CRC32(4)   数値はリトルエンディアン
+//append() はメモリに書くだけで, fsync は別スレッドでまとめて行う(グループコミット).
+//ファイルは segmentRecords 件毎に taps-<先頭の通し番号>.log に分け, compact() で古いものから捨てる.
+//retention を決めればそれより古いものは同じスレッドで定期的に捨てる. 開く時に全件を読むので UI スレッドで作らない.
+//last() の索引は直近に現れた maxIds 個の ID だけを持ち, 溢れたら最も長く現れていない ID から忘れる
+class TapJournal implements AutoCloseable {
+  static final int RECORD_LENGTH = 64;
+  static final long DEFAULT_RETENTION = 30L * 24 * 60 * 60 * 1000; //[ms]
+  static final int DEFAULT_MAX_IDS = 4096;
+  private static final long COMPACT_INTERVAL = 60 * 60 * 1000; //[ms] 長くてもこの間隔で古いものを捨てる
+  private static final int RECOVER_RECORDS = 1024; //開く時にまとめて読む件数
+  private static final int READER_LENGTH = 32;
+  private static final int CRC_OFFSET = RECORD_LENGTH - 4;
+
+  static class Tap {
+    final long seq, time, id, pmm;
+    final String brty, reader;
+
+    Tap(long seq, long time, long id, long pmm, String brty, String reader) {
+      this.seq = seq;
+      this.time = time;
+      this.id = id;
+      this.pmm = pmm;
+      this.brty = brty;
+      this.reader = reader;
+    }
+
+    @Override
+    public String toString() {
+      return String.format("#%d %tF %<tT.%<tL %s %016x %s", seq, time, brty, id, reader);
+    }
+  }
+
+  private final File dir;
+  private final int segmentRecords;
+  private final int syncEvery; //この件数溜まったら待たずにコミットする
+  private final int depth; //ID 毎に覚えておく件数
+  private final ScheduledExecutorService committer;
+
+  //append() 側. this で守る
+  private ByteBuffer active, flushing; //溜めている分, コミット中の分
+  private long next; //次の通し番号
+  private long activeFirst; //active の先頭の通し番号
+  private final Map<Long,long[]> index; //ID -> 直近の通し番号のリング. [0] は件数. アクセス順
+  private final CRC32 crc = new CRC32();
+  private final byte[] record = new byte[RECORD_LENGTH];
+  private IOException failure; //コミットの失敗. 以降の append() は開き直すまで投げる
+  private boolean closed;
+
+  //コミット側. commitLock で守る
+  private final Object commitLock = new Object();
+  private final TreeMap<Long,File> segments = new TreeMap<>(); //先頭の通し番号 -> ファイル
+  private FileChannel channel; //最後のセグメント
+  private long channelFirst, channelRecords;
+  private volatile long durable; //この通し番号の手前までは fsync 済み
+  private volatile long first; //残っている最古の通し番号
+
+  //syncInterval[ms] 毎か syncEvery 件毎にコミットする. retention[ms] より古いものは捨てる. 0 なら残し続ける
+  TapJournal(File dir, int segmentRecords, int syncEvery, long syncInterval, int depth, int maxIds, long retention) throws IOException {
+    if(segmentRecords < 1) throw new IllegalArgumentException("segmentRecords=" + segmentRecords);
+    if(maxIds < 1) throw new IllegalArgumentException("maxIds=" + maxIds);
+    if(retention < 0) throw new IllegalArgumentException("retention=" + retention);
+    if(syncEvery < 1) throw new IllegalArgumentException("syncEvery=" + syncEvery);
+    if(syncInterval < 1) throw new IllegalArgumentException("syncInterval=" + syncInterval);
+    if(depth < 1) throw new IllegalArgumentException("depth=" + depth);
+    if(!dir.isDirectory() && !dir.mkdirs()) throw new IOException("mkdirs: " + dir);
+    this.dir = dir;
+    this.segmentRecords = segmentRecords;
+    this.syncEvery = syncEvery;
+    this.depth = depth;
+    this.index = new LinkedHashMap<Long,long[]>(16, 0.75f, true) {
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<Long,long[]> eldest) {
+        return size() > maxIds;
+      }
+    };
+    this.active = ByteBuffer.allocate(RECORD_LENGTH * syncEvery).order(ByteOrder.LITTLE_ENDIAN);
+    this.flushing = ByteBuffer.allocate(RECORD_LENGTH * syncEvery).order(ByteOrder.LITTLE_ENDIAN);
+    recover();
+    this.committer = Executors.newSingleThreadScheduledExecutor(r -> {
+      Thread thread = new Thread(r, "TapJournal");
+      thread.setDaemon(true);
+      return thread;
+    });
+    committer.scheduleWithFixedDelay(this::commitQuietly, syncInterval, syncInterval, TimeUnit.MILLISECONDS);
+    if(retention > 0) {
+      long interval = Math.min(retention, COMPACT_INTERVAL);
+      committer.scheduleWithFixedDelay(() -> compactQuietly(System.currentTimeMillis() - retention),
+              syncInterval, interval, TimeUnit.MILLISECONDS);
+    }
+  }
+  TapJournal(File dir, int segmentRecords, int syncEvery, long syncInterval, int depth) throws IOException {
+    this(dir, segmentRecords, syncEvery, syncInterval, depth, DEFAULT_MAX_IDS, 0);
+  }
+  TapJournal(File dir) throws IOException {
+    this(dir, 65536, 64, 200, 16, DEFAULT_MAX_IDS, DEFAULT_RETENTION);
+  }
+
+  //1 件追記して通し番号を返す. fsync は待たない
+  long append(String reader, PollScheduler.Result result) throws IOException {
+    return append(System.currentTimeMillis(), reader, result);
+  }
+  //time[epoch ms] は検出した時刻. 別のスレッドから後で書く時に使う
+  long append(long time, String reader, PollScheduler.Result result) throws IOException {
+    long pmm = result.type() == 'F' ? Bytes.toLong(result.response, 9) : 0;
+    return append(time, reader, result.brty, result.key(), pmm);
+  }
+  long append(long time, String reader, String brty, long id, long pmm) throws IOException {
+    while(true) {
+      boolean full;
+      long seq;
+      synchronized(this) {
+        if(closed) throw new IOException("journal closed");
+        if(failure != null) throw failure;
+        full = !active.hasRemaining();
+        if(!full) {
+          seq = next++;
+          encode(time, reader, brty, id, pmm);
+          active.put(record);
+          long[] ring = index.computeIfAbsent(id, k -> new long[depth + 1]);
+          ring[1 + (int)(ring[0]++ % depth)] = seq;
+          full = !active.hasRemaining();
+        } else {
+          seq = -1;
+        }
+      }
+      if(full) commit(); //溜まり過ぎたらここで待つ
+      if(seq >= 0) return seq;
+    }
+  }
+
+  //ここまでの append() を fsync する
+  void sync() throws IOException {
+    commit();
+  }
+
+  long getDurable() {
+    return durable;
+  }
+
+  //id の直近 n 件 (新しい順)
+  List<Tap> last(long id, int n) throws IOException {
+    long[] seqs;
+    synchronized(this) {
+      long[] ring = index.get(id);
+      if(ring == null) return Collections.emptyList();
+      int count = (int)Math.min(Math.min(n, depth), ring[0]);
+      seqs = new long[count];
+      for(int i=0; i<count; i++) seqs[i] = ring[1 + (int)((ring[0] - 1 - i) % depth)];
+    }
+    sync();
+    List<Tap> taps = new ArrayList<>();
+    synchronized(commitLock) {
+      for(long seq : seqs) {
+        if(seq < first) break; //compact() で捨てた
+        taps.add(read(seq));
+      }
+    }
+    return taps;
+  }
+
+  //time[epoch ms] より古いものだけのセグメントを消し, 跨いでいるセグメントは前を詰める. 書き込み中のセグメントはそのまま
+  void compact(long time) throws IOException {
+    synchronized(commitLock) {
+      for(Iterator<Map.Entry<Long,File>> i = segments.entrySet().iterator(); i.hasNext(); ) {
+        Map.Entry<Long,File> entry = i.next();
+        if(entry.getKey() == channelFirst) break;
+        File file = entry.getValue();
+        long keep = firstAtOrAfter(file, time); //残す最初の位置(件)
+        long records = file.length() / RECORD_LENGTH;
+        if(keep == 0) break; //これ以降は新しい
+        i.remove();
+        if(keep < records) { //後ろを残して先頭の番号で付け直す
+          long start = entry.getKey() + keep;
+          File compacted = segmentFile(start);
+          try(FileChannel in = new FileInputStream(file).getChannel();
+              FileChannel out = new FileOutputStream(compacted).getChannel()) {
+            long pos = keep * RECORD_LENGTH, end = records * RECORD_LENGTH;
+            while(pos < end) pos += in.transferTo(pos, end - pos, out);
+            out.force(true);
+          }
+          if(!file.delete()) throw new IOException("delete: " + file);
+          segments.put(start, compacted);
+          first = start;
+          break;
+        }
+        if(!file.delete()) throw new IOException("delete: " + file);
+        first = segments.isEmpty() ? channelFirst : segments.firstKey();
+      }
+      long kept = first;
+      synchronized(this) { //最新も捨てた ID は索引から消す. 一部だけ残る ID は last() が first で切る
+        index.values().removeIf(ring -> ring[1 + (int)((ring[0] - 1) % depth)] < kept);
+      }
+    }
+  }
+
+  private void compactQuietly(long time) {
+    try {
+      compact(time);
+    } catch(IOException ignore) {
+      //次の回でやり直す
+    }
+  }
+
+  @Override
+  public void close() throws IOException {
+    synchronized(this) {
+      if(closed) return;
+      closed = true;
+    }
+    committer.shutdown();
+    try {
+      commit();
+    } finally {
+      synchronized(commitLock) {
+        if(channel != null) channel.close();
+        channel = null;
+      }
+    }
+  }
+
+  private void encode(long time, String reader, String brty, long id, long pmm) {
+    ByteBuffer b = ByteBuffer.wrap(record).order(ByteOrder.LITTLE_ENDIAN);
+    Arrays.fill(record, (byte)0);
+    b.putLong(time).putLong(id).putLong(pmm);
+    byte[] t = brty.getBytes(StandardCharsets.US_ASCII);
+    b.put(t, 0, Math.min(4, t.length));
+    b.position(28);
+    byte[] r = reader.getBytes(StandardCharsets.UTF_8);
+    int n = Math.min(READER_LENGTH, r.length);
+    b.put(r, r.length - n, n); //デバイス名は末尾で区別できる
+    crc.reset();
+    crc.update(record, 0, CRC_OFFSET);
+    b.position(CRC_OFFSET);
+    b.putInt((int)crc.getValue());
+  }
+
+  private static Tap decode(long seq, ByteBuffer b) {
+    b.order(ByteOrder.LITTLE_ENDIAN);
+    long time = b.getLong(0), id = b.getLong(8), pmm = b.getLong(16);
+    byte[] t = new byte[4], r = new byte[READER_LENGTH];
+    b.position(24);
+    b.get(t);
+    b.position(28);
+    b.get(r);
+    return new Tap(seq, time, id, pmm, trim(t, StandardCharsets.US_ASCII), trim(r, StandardCharsets.UTF_8));
+  }
+
+  private static String trim(byte[] bytes, java.nio.charset.Charset charset) {
+    int n = 0;
+    while(n < bytes.length && bytes[n] != 0) n++;
+    return new String(bytes, 0, n, charset);
+  }
+
+  //bytes[offset..] の 1 件の CRC が合うか
+  private static boolean valid(ByteBuffer bytes, int offset, CRC32 crc) {
+    crc.reset();
+    crc.update(bytes.array(), bytes.arrayOffset() + offset, CRC_OFFSET);
+    return (int)crc.getValue() == bytes.getInt(offset + CRC_OFFSET);
+  }
+
+  private void commitQuietly() {
+    try {
+      commit();
+    } catch(IOException e) {
+      synchronized(this) {
+        failure = e;
+      }
+    }
+  }
+
+  //溜まっている分をセグメントへ書いて fsync する. append() はその間も active に書ける.
+  //失敗したらその分は失われ, 通し番号とファイルの位置がずれるので以降は書かない
+  private void commit() throws IOException {
+    synchronized(commitLock) {
+      long start;
+      synchronized(this) {
+        if(failure != null) throw failure;
+        if(active.position() == 0) return;
+        ByteBuffer b = flushing;
+        flushing = active;
+        active = b;
+        start = activeFirst;
+        activeFirst = next;
+      }
+      try {
+        flushing.flip();
+        long seq = start;
+        while(flushing.hasRemaining()) {
+          if(channel == null || channelRecords == segmentRecords) rotate(seq);
+          int n = (int)Math.min(flushing.remaining() / RECORD_LENGTH, segmentRecords - channelRecords);
+          ByteBuffer slice = flushing.duplicate();
+          slice.limit(slice.position() + n * RECORD_LENGTH);
+          while(slice.hasRemaining()) channel.write(slice);
+          flushing.position(slice.limit());
+          channelRecords += n;
+          seq += n;
+        }
+        channel.force(false);
+        durable = seq;
+      } catch(IOException | RuntimeException e) {
+        synchronized(this) {
+          if(failure == null) failure = e instanceof IOException ? (IOException)e : new IOException(e);
+        }
+        throw e;
+      } finally {
+        flushing.clear(); //次のコミットで同じ分を書き直さない
+      }
+    }
+  }
+
+  //seq から始まる新しいセグメントに切り替える
+  private void rotate(long seq) throws IOException {
+    if(channel != null) {
+      channel.force(false);
+      channel.close();
+    }
+    File file = segmentFile(seq);
+    channel = new FileOutputStream(file, true).getChannel();
+    channelFirst = seq;
+    channelRecords = 0;
+    segments.put(seq, file);
+  }
+
+  private File segmentFile(long seq) {
+    return new File(dir, String.format("taps-%016x.log", seq));
+  }
+
+  private Tap read(long seq) throws IOException {
+    Map.Entry<Long,File> segment = segments.floorEntry(seq);
+    if(segment == null) throw new IOException("no segment for #" + seq);
+    ByteBuffer b = ByteBuffer.allocate(RECORD_LENGTH);
+    try(FileChannel in = new FileInputStream(segment.getValue()).getChannel()) {
+      long pos = (seq - segment.getKey()) * RECORD_LENGTH;
+      while(b.hasRemaining()) {
+        if(in.read(b, pos + b.position()) < 0) throw new EOFException("#" + seq);
+      }
+    }
+    return decode(seq, b);
+  }
+
+  //file の中で time 以降の最初の位置(件). 全て古ければ件数
+  private static long firstAtOrAfter(File file, long time) throws IOException {
+    ByteBuffer b = ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN);
+    try(FileChannel in = new FileInputStream(file).getChannel()) {
+      long records = in.size() / RECORD_LENGTH;
+      for(long i=0; i<records; i++) {
+        b.clear();
+        while(b.hasRemaining()) {
+          if(in.read(b, i * RECORD_LENGTH + b.position()) < 0) return records;
+        }
+        if(b.getLong(0) >= time) return i;
+      }
+      return records;
+    }
+  }
+
+  //既存のセグメントを読み, 索引を作り直す. 最後のセグメントの壊れた末尾(最後の正しい 1 件より後ろ. 書きかけ)だけを切り捨てる.
+  //途中の壊れた 1 件は索引に載せずに飛ばし, 後ろの正しいものは残す
+  private void recover() throws IOException {
+    File[] files = dir.listFiles((d, name) -> name.startsWith("taps-") && name.endsWith(".log"));
+    if(files != null) {
+      for(File file : files) {
+        try {
+          segments.put(Long.parseLong(file.getName().substring(5, 21), 16), file);
+        } catch(NumberFormatException | StringIndexOutOfBoundsException ignore) {
+          //他のファイル
+        }
+      }
+    }
+    ByteBuffer b = ByteBuffer.allocate(RECORD_LENGTH * RECOVER_RECORDS).order(ByteOrder.LITTLE_ENDIAN);
+    long seq = segments.isEmpty() ? 0 : segments.firstKey();
+    first = seq;
+    for(Map.Entry<Long,File> segment : segments.entrySet()) {
+      seq = segment.getKey();
+      boolean tail = segment.getKey().equals(segments.lastKey());
+      long read = 0, end = 0; //end は最後の正しい 1 件の次
+      try(FileChannel in = new FileInputStream(segment.getValue()).getChannel()) {
+        long records = in.size() / RECORD_LENGTH;
+        scan:
+        while(read < records) {
+          int n = (int)Math.min(records - read, RECOVER_RECORDS);
+          b.clear().limit(n * RECORD_LENGTH);
+          while(b.hasRemaining()) {
+            if(in.read(b, read * RECORD_LENGTH + b.position()) < 0) break scan;
+          }
+          for(int i=0; i<n; i++, read++) {
+            if(!valid(b, i * RECORD_LENGTH, crc)) continue;
+            long id = b.getLong(i * RECORD_LENGTH + 8);
+            long[] ring = index.computeIfAbsent(id, k -> new long[depth + 1]);
+            ring[1 + (int)(ring[0]++ % depth)] = seq + read;
+            end = read + 1;
+          }
+        }
+      }
+      if(!tail) { //閉じたセグメントは長さで件数が決まる
+        seq += read;
+        continue;
+      }
+      if(end * RECORD_LENGTH != segment.getValue().length()) { //書きかけを捨てる
+        try(FileChannel out = new FileOutputStream(segment.getValue(), true).getChannel()) {
+          out.truncate(end * RECORD_LENGTH);
+        }
+      }
+      seq += end;
+    }
+    if(!segments.isEmpty()) {
+      Map.Entry<Long,File> last = segments.lastEntry();
+      channel = new FileOutputStream(last.getValue(), true).getChannel();
+      channelFirst = last.getKey();
+      channelRecords = seq - channelFirst;
+    }
+    next = activeFirst = seq;
+    durable = seq;
+  }
+}
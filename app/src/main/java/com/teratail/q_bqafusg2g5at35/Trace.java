@@ -0,0 +1,18 @@
+package com.teratail.q_bqafusg2g5at35;
+
+import java.nio.charset.StandardCharsets;
+
+//USB の送受信を記録するトレースファイルの形式
+//  ヘッダ: "P100TRC" 版(1) 記録開始時刻[epoch ms](8)
+//  レコード: 種別(1) 前のレコードからの経過[μs](4) 長さ(2) データ
+//    種別 W=送信 R=受信 E=受信エラー(データは例外のメッセージ)
+//数値はリトルエンディアン
+final class Trace {
+  static final byte[] MAGIC = "P100TRC".getBytes(StandardCharsets.US_ASCII);
+  static final byte VERSION = 1;
+  static final int HEADER_LENGTH = 8 + 8;
+  static final int RECORD_HEADER_LENGTH = 1 + 4 + 2;
+  static final byte WRITE = 'W', READ = 'R', ERROR = 'E';
+
+  private Trace() {}
+}
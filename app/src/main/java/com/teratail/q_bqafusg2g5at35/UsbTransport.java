@@ -0,0 +1,112 @@
+package com.teratail.q_bqafusg2g5at35;
+
+import android.hardware.usb.*;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.*;
+import java.util.concurrent.TimeoutException;
+
+//Android の USB ホスト API で RC-S380 と通信する. Android に依存するのはこのファイルと MainActivity だけ.
+//そのまま使えば read 毎に bulkTransfer, QueuedTransport で包めば UsbRequest を出しておいて受ける.
+//包んだら read は使わない(出している UsbRequest と受信を取り合う)
+class UsbTransport implements Transport, QueuedTransport.Endpoint {
+  private final UsbDeviceConnection con;
+  private final UsbEndpoint in, out;
+  private final List<UsbRequest> requests = new ArrayList<>();
+  private final Deque<UsbRequest> idle = new ArrayDeque<>(); //完了して再利用できる
+  private Logger log;
+
+  UsbTransport(UsbManager manager, UsbDevice device) throws IOException {
+    con = manager.openDevice(device);
+    if(con == null) throw new IOException("Connection is null");
+
+    UsbInterface usbInterface = device.getInterface(0);
+    if(!con.claimInterface(usbInterface, true)) {
+      con.close();
+      throw new IOException("claimInterface is false");
+    }
+
+    UsbEndpoint in = null, out = null;
+    for(int i=0; i<usbInterface.getEndpointCount(); i++) {
+      UsbEndpoint ep = usbInterface.getEndpoint(i);
+      if(ep.getType() != UsbConstants.USB_ENDPOINT_XFER_BULK) continue;
+      if(ep.getDirection() == UsbConstants.USB_DIR_IN) {
+        in = ep;
+      } else if (ep.getDirection() == UsbConstants.USB_DIR_OUT) {
+        out = ep;
+      }
+    }
+    this.in = in;
+    this.out = out;
+  }
+
+  @Override
+  public void setLogger(Logger log) {
+    this.log = log;
+  }
+
+  @Override
+  public void write(byte[] bytes) throws IOException {
+    write(bytes, bytes.length);
+  }
+  @Override
+  public void write(byte[] bytes, int length) throws IOException {
+    if(log != null && log.isEnabled(Logger.Level.DEBUG)) log.debug(">>>> " + Bytes.toString(bytes, 0, length));
+    if(con.bulkTransfer(out, bytes, length, 100) != length) throw new IOException("send error");
+  }
+
+  @Override
+  public byte[] read(int timeout) throws IOException {
+    byte[] buffer = new byte[Frame.MAX_LENGTH];
+    int len = read(buffer, timeout);
+    return Arrays.copyOfRange(buffer, 0, len);
+  }
+  @Override
+  public int read(byte[] buffer, int offset, int timeout) throws IOException {
+    int len = con.bulkTransfer(in, buffer, offset, buffer.length - offset, timeout); //timeout=[ms]
+    if(len < 0) throw new IOException("receive error: len=" + len);
+    if(log != null && log.isEnabled(Logger.Level.DEBUG)) log.debug("<<<< " + Bytes.toString(buffer, offset, offset + len));
+    return len;
+  }
+
+  @Override
+  public void queue(ByteBuffer buffer) throws IOException {
+    UsbRequest request = idle.poll();
+    if(request == null) {
+      request = new UsbRequest();
+      if(!request.initialize(con, in)) throw new IOException("UsbRequest.initialize is false");
+      requests.add(request);
+    }
+    request.setClientData(buffer);
+    if(!request.queue(buffer)) {
+      idle.add(request);
+      throw new IOException("UsbRequest.queue is false");
+    }
+  }
+
+  //IN の UsbRequest しか出さないので, requestWait が返すのはどれかの受信
+  @Override
+  public ByteBuffer await(int timeout) throws IOException {
+    UsbRequest request;
+    try {
+      request = timeout <= 0 ? con.requestWait() : con.requestWait(timeout);
+    } catch(TimeoutException e) {
+      return null;
+    }
+    if(request == null) throw new IOException("receive error: requestWait is null");
+    idle.add(request);
+    return (ByteBuffer)request.getClientData();
+  }
+
+  @Override
+  public void close() {
+    for(UsbRequest request : requests) {
+      request.cancel();
+      request.close();
+    }
+    requests.clear();
+    idle.clear();
+    if(con != null) con.close();
+  }
+}
@@ -0,0 +1,70 @@
+package com.teratail.q_bqafusg2g5at35;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+public class AnticollisionTest {
+  private static final byte[] SENS_RES = Bytes.of(0x44, 0);
+
+  private static long commands(Device device, Chipset.CMD cmd) {
+    return device.getStats().snapshot().count(cmd);
+  }
+  private static long commands(Device device) {
+    long n = 0;
+    for(Chipset.CMD cmd : Chipset.CMD.values()) n += commands(device, cmd);
+    return n;
+  }
+
+  //cards を置いて sense_tta し, 見つけた UID と USB の往復回数を確かめる
+  private static void assertResolves(byte[] expected, int maxInCommRF, int maxCommands, byte[]... uids) throws Exception {
+    SimulatedTransport transport = new SimulatedTransport().setTimeScale(0);
+    for(byte[] uid : uids) transport.addCard(new SimulatedTransport.TypeACard(uid, SENS_RES, 0x08));
+    try(Device device = new Device(transport, Logger.NONE, "test")) {
+      long inCommRF = commands(device, Chipset.CMD.InCommRF), total = commands(device);
+      byte[] res = device.sense_tta("106A", 5);
+      String message = Bytes.toString(expected);
+      assertNotNull(message, res);
+      assertArrayEquals(message, expected, Arrays.copyOfRange(res, 3, res.length));
+      assertTrue(message + " InCommRF", commands(device, Chipset.CMD.InCommRF) - inCommRF <= maxInCommRF);
+      assertTrue(message + " commands", commands(device) - total <= maxCommands);
+    }
+  }
+
+  //最後のビット(31)だけが違う 2 枚. 衝突位置から送り直すので 1 ビットずつ進めない
+  @Test
+  public void twoCardsDifferingAtLastBit() throws Exception {
+    byte[] a = Bytes.of(0x11, 0x22, 0x33, 0x44), b = Bytes.of(0x11, 0x22, 0x33, 0xc4);
+    //SENS_REQ, SDD_REQ, 32 ビット確定の SDD_REQ, SEL_REQ
+    assertResolves(b, 4, 8, a, b);
+  }
+
+  @Test
+  public void twoCardsDifferingAtFirstBit() throws Exception {
+    byte[] a = Bytes.of(0x10, 0x22, 0x33, 0x44), b = Bytes.of(0x11, 0x22, 0x33, 0x44);
+    assertResolves(b, 4, 9, a, b);
+  }
+
+  //衝突毎に 1 往復
+  @Test
+  public void threeCardsCollideTwice() throws Exception {
+    byte[] a = Bytes.of(0x00, 0x22, 0x33, 0x44), b = Bytes.of(0x01, 0x22, 0x33, 0x44), c = Bytes.of(0x03, 0x22, 0x33, 0x44);
+    assertResolves(c, 5, 11, a, b, c);
+  }
+
+  //カスケードレベル 1 の UID 片が同じ 7 バイト UID は, レベル 2 で衝突する
+  @Test
+  public void collisionAtCascadeLevel2() throws Exception {
+    byte[] a = Bytes.of(0x04, 0x11, 0x22, 0x33, 0x44, 0x55, 0x66), b = Bytes.of(0x04, 0x11, 0x22, 0x33, 0x44, 0x55, 0xe6);
+    //SENS_REQ, レベル 1 の SDD_REQ と SEL_REQ, レベル 2 の SDD_REQ 2 回と SEL_REQ
+    assertResolves(b, 6, 10, a, b);
+  }
+
+  @Test
+  public void singleCardHasNoAnticollisionRound() throws Exception {
+    byte[] a = Bytes.of(0x04, 0x11, 0x22, 0x33, 0x44, 0x55, 0x66);
+    assertResolves(a, 5, 8, a);
+  }
+}
@@ -0,0 +1,111 @@
+package com.teratail.q_bqafusg2g5at35;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class AsyncReaderTest {
+  private static AsyncReader newReader() {
+    SimulatedTransport transport = new SimulatedTransport().setTimeScale(0);
+    transport.addCard(new SimulatedTransport.Card(Bytes.of(1, 2, 3, 4, 5, 6, 7, 8), Bytes.of(0, 0xf1, 0, 0, 0, 1, 0x43, 0), 3));
+    return new AsyncReader(new ReaderSession(() -> transport, Logger.NONE), "test");
+  }
+
+  //USB 転送でブロックしている代わり
+  private static void await(CountDownLatch latch) throws IOException {
+    try {
+      latch.await();
+    } catch(InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("interrupted", e);
+    }
+  }
+
+  private static Throwable cause(CompletableFuture<?> future) throws InterruptedException {
+    try {
+      future.get(2, TimeUnit.SECONDS);
+      fail("completed normally");
+      return null;
+    } catch(ExecutionException e) {
+      return e.getCause();
+    } catch(TimeoutException e) {
+      throw new AssertionError("not completed", e);
+    }
+  }
+
+  @Test
+  public void completesWithResultOrException() throws Exception {
+    AsyncReader reader = newReader();
+    try {
+      assertEquals("test", reader.submit(device -> "test", 1000).get(2, TimeUnit.SECONDS));
+      assertNotNull(reader.sense_ttf("212F", 1000).get(2, TimeUnit.SECONDS));
+      Throwable e = cause(reader.submit(device -> { throw new IOException("failed"); }));
+      assertTrue(e instanceof IOException);
+      assertEquals("failed", e.getMessage());
+    } finally {
+      reader.close();
+    }
+  }
+
+  //実行中の操作が長引くと期限で TimeoutException になり, その後ろで期限が過ぎた操作は実行しない
+  @Test
+  public void timeoutCompletesWithoutWaitingForUsb() throws Exception {
+    AsyncReader reader = newReader();
+    CountDownLatch release = new CountDownLatch(1);
+    AtomicInteger ran = new AtomicInteger();
+    try {
+      long start = System.nanoTime();
+      CompletableFuture<String> blocked = reader.submit(device -> {
+        await(release);
+        return "late";
+      }, 50);
+      CompletableFuture<Integer> queued = reader.submit(device -> ran.incrementAndGet(), 50);
+      assertTrue(cause(blocked) instanceof TimeoutException);
+      assertTrue(cause(queued) instanceof TimeoutException);
+      assertTrue((System.nanoTime() - start) / 1000000 < 1000);
+
+      release.countDown();
+      assertEquals(1, reader.submit(device -> 1, 1000).get(2, TimeUnit.SECONDS).intValue()); //I/O スレッドは続く
+      assertEquals(0, ran.get());
+      assertTrue(blocked.isCompletedExceptionally()); //遅れて出た結果は捨てる
+    } finally {
+      release.countDown();
+      reader.close();
+    }
+  }
+
+  //未着手で cancel された操作は実行しない
+  @Test
+  public void cancelledOperationIsSkipped() throws Exception {
+    AsyncReader reader = newReader();
+    CountDownLatch release = new CountDownLatch(1);
+    AtomicInteger ran = new AtomicInteger();
+    try {
+      reader.submit(device -> {
+        await(release);
+        return null;
+      });
+      CompletableFuture<Integer> cancelled = reader.submit(device -> ran.incrementAndGet());
+      assertTrue(cancelled.cancel(false));
+      release.countDown();
+      assertEquals(1, reader.submit(device -> 1).get(2, TimeUnit.SECONDS).intValue());
+      assertEquals(0, ran.get());
+    } finally {
+      release.countDown();
+      reader.close();
+    }
+  }
+
+  @Test
+  public void submitAfterCloseFails() throws Exception {
+    AsyncReader reader = newReader();
+    reader.close();
+    Throwable e = cause(reader.submit(device -> 1, 1000));
+    assertTrue(e instanceof IOException);
+    assertEquals("reader closed", e.getMessage());
+  }
+}
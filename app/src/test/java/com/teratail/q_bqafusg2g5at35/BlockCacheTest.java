@@ -0,0 +1,124 @@
+package com.teratail.q_bqafusg2g5at35;
+
+import org.junit.Test;
+
+import java.io.*;
+
+import static org.junit.Assert.*;
+
+public class BlockCacheTest {
+  private static final byte[] IDM = Bytes.of(1, 2, 3, 4, 5, 6, 7, 8), OTHER = Bytes.of(1, 2, 3, 4, 5, 6, 7, 9);
+  private static final long NOW = 1000000;
+
+  private static byte[] block(int b) {
+    byte[] data = new byte[BlockCache.BLOCK_LENGTH];
+    data[0] = (byte)b;
+    return data;
+  }
+
+  //capacity を超えたら最も使われていないものから捨てる
+  @Test
+  public void leastRecentlyUsedIsEvicted() {
+    BlockCache cache = new BlockCache(2).cache(0x000b, 0, 3, 0);
+    assertTrue(cache.put(IDM, 0x000b, 0, block(0), NOW));
+    assertTrue(cache.put(IDM, 0x000b, 1, block(1), NOW));
+    assertNotNull(cache.get(IDM, 0x000b, 0, NOW)); //0 の方が新しくなる
+    assertTrue(cache.put(IDM, 0x000b, 2, block(2), NOW));
+    assertEquals(2, cache.size());
+    assertArrayEquals(block(0), cache.get(IDM, 0x000b, 0, NOW));
+    assertNull(cache.get(IDM, 0x000b, 1, NOW));
+    assertArrayEquals(block(2), cache.get(IDM, 0x000b, 2, NOW));
+    assertEquals(3, cache.getHits());
+    assertEquals(1, cache.getMisses());
+  }
+
+  @Test
+  public void entriesExpireAfterTtl() {
+    BlockCache cache = new BlockCache(16).cache(0x000b, 0, 0, 100).cache(0x000b, 1, 1, 0);
+    cache.put(IDM, 0x000b, 0, block(0), NOW);
+    cache.put(IDM, 0x000b, 1, block(1), NOW);
+    assertNotNull(cache.get(IDM, 0x000b, 0, NOW + 99));
+    assertNull(cache.get(IDM, 0x000b, 0, NOW + 100));
+    assertEquals(1, cache.size());
+    assertNotNull(cache.get(IDM, 0x000b, 1, Long.MAX_VALUE - 1)); //期限無し
+  }
+
+  //規則に無いブロックは覚えず, 他のカードのものとも混ざらない
+  @Test
+  public void onlyRuledBlocksOfSameCardHit() {
+    BlockCache cache = new BlockCache(16).cache(0x000b, 0, 1, 0);
+    assertFalse(cache.put(IDM, 0x000b, 2, block(2), NOW));
+    assertFalse(cache.put(IDM, 0x090f, 0, block(0), NOW));
+    assertTrue(cache.put(IDM, 0x000b, 1, block(1), NOW));
+    assertNull(cache.get(OTHER, 0x000b, 1, NOW));
+    byte[] got = cache.get(IDM, 0x000b, 1, NOW);
+    got[0] = 0x55; //複製を返す
+    assertArrayEquals(block(1), cache.get(IDM, 0x000b, 1, NOW));
+    cache.invalidate(IDM);
+    assertEquals(0, cache.size());
+  }
+
+  @Test
+  public void snapshotRoundTrip() throws IOException {
+    File file = File.createTempFile("blocks", ".bin");
+    try {
+      long now = System.currentTimeMillis();
+      BlockCache cache = new BlockCache(16).cache(0x000b, 0, 3, 0).cache(0x000b, 4, 4, 60000).cache(0x000b, 5, 5, 1);
+      cache.put(IDM, 0x000b, 0, block(0));
+      cache.put(OTHER, 0x000b, 4, block(4));
+      cache.put(IDM, 0x000b, 5, block(5), now - 1000); //期限切れは書かない
+      cache.save(file);
+
+      BlockCache loaded = new BlockCache(16).cache(0x000b, 0, 4, 0);
+      assertEquals(2, loaded.load(file));
+      assertArrayEquals(block(0), loaded.get(IDM, 0x000b, 0));
+      assertArrayEquals(block(4), loaded.get(OTHER, 0x000b, 4));
+      assertNull(loaded.get(OTHER, 0x000b, 4, now + 60000 + 1000)); //ファイルの期限を引き継ぐ
+
+      BlockCache narrower = new BlockCache(16).cache(0x000b, 4, 4, 0);
+      assertEquals(1, narrower.load(file)); //今の規則に無いものは捨てる
+      assertEquals(0, new BlockCache(16).load(new File(file.getPath() + ".none")));
+    } finally {
+      file.delete();
+    }
+  }
+
+  @Test
+  public void corruptedSnapshotIsRejected() throws IOException {
+    File file = File.createTempFile("blocks", ".bin");
+    try {
+      BlockCache cache = new BlockCache(16).cache(0x000b, 0, 3, 0);
+      cache.put(IDM, 0x000b, 0, block(0));
+      cache.save(file);
+      try(RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+        raf.seek(20);
+        raf.write(raf.read() ^ 0x01);
+      }
+      assertLoadFails(file, "broken block cache");
+
+      cache.save(file);
+      try(RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+        raf.setLength(raf.length() - 1); //書きかけ
+      }
+      assertLoadFails(file, "broken block cache");
+
+      try(FileOutputStream out = new FileOutputStream(file)) {
+        out.write(new byte[32]);
+      }
+      assertLoadFails(file, "not a block cache");
+    } finally {
+      file.delete();
+    }
+  }
+
+  private static void assertLoadFails(File file, String message) {
+    BlockCache cache = new BlockCache(16).cache(0x000b, 0, 3, 0);
+    try {
+      cache.load(file);
+      fail("loaded " + message);
+    } catch(IOException e) {
+      assertTrue(e.getMessage(), e.getMessage().startsWith(message));
+    }
+    assertEquals(0, cache.size());
+  }
+}
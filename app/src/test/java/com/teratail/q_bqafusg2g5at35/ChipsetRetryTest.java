@@ -0,0 +1,79 @@
+package com.teratail.q_bqafusg2g5at35;
+
+import org.junit.Test;
+
+import java.io.IOException;
+
+import static org.junit.Assert.*;
+
+public class ChipsetRetryTest {
+  //受信タイムアウトがまだ初期値(100ms)の Chipset でも, 既定の期限(50ms)内に送り直して回復する
+  @Test
+  public void coldChipsetRecoversFromEachFault() throws IOException {
+    for(SimulatedTransport.Fault fault : SimulatedTransport.Fault.values()) {
+      SimulatedTransport transport = new SimulatedTransport().setTimeScale(0);
+      RetryPolicy policy = new RetryPolicy();
+      Chipset chipset = new Chipset(transport, Logger.NONE, policy);
+      assertEquals(Chipset.READ_TIMEOUT, chipset.getReadTimeout());
+
+      transport.injectFault(fault);
+      long start = System.nanoTime();
+      byte[] res = chipset.send_command(Chipset.CMD.GetFirmwareVersion, new byte[0]);
+      long elapsed = (System.nanoTime() - start) / 1000000L;
+
+      assertNotNull(fault + " not recovered", res);
+      assertEquals(fault + " retries", 1, chipset.getStats().snapshot().retries);
+      assertTrue(fault + " took " + elapsed + "ms", elapsed < Chipset.READ_TIMEOUT);
+      assertFalse(policy.isOpen());
+      chipset.close();
+    }
+  }
+
+  //再送を使い切ったチェックサム誤りも IOException で届く. 非検査例外だと Poller のスレッドが黙って死ぬ
+  @Test
+  public void checksumErrorAfterRetriesIsIOException() throws IOException {
+    SimulatedTransport transport = new SimulatedTransport().setTimeScale(0);
+    Chipset chipset = new Chipset(transport, Logger.NONE, new RetryPolicy(2, 0, 0, 0));
+    for(int i=0; i<3; i++) transport.injectFault(SimulatedTransport.Fault.CORRUPT_RESPONSE);
+    try {
+      chipset.send_command(Chipset.CMD.GetFirmwareVersion, new byte[0]);
+      fail("no error");
+    } catch(ChecksumException e) {
+      assertEquals(3, chipset.getStats().snapshot().checksumErrors);
+      assertEquals(2, chipset.getStats().snapshot().retries);
+    }
+    assertNotNull(chipset.send_command(Chipset.CMD.GetFirmwareVersion, new byte[0]));
+    chipset.close();
+  }
+
+  //ブレーカーが開いていて RF を切れなくても USB は閉じる
+  @Test
+  public void closeReleasesTransportWhileCircuitOpen() throws IOException {
+    SimulatedTransport transport = new SimulatedTransport().setTimeScale(0);
+    RetryPolicy policy = new RetryPolicy(0, 0, 1, 60000);
+    Chipset chipset = new Chipset(transport, Logger.NONE, policy);
+    transport.injectFault(SimulatedTransport.Fault.DROP_RESPONSE);
+    try {
+      chipset.send_command(Chipset.CMD.SwitchRF, Bytes.of(1));
+    } catch(IOException expected) {
+      //応答が来ない
+    }
+    assertTrue(policy.isOpen());
+    chipset.close();
+    try {
+      transport.write(Chipset.ACK);
+      fail("transport not closed");
+    } catch(IOException expected) {
+      //閉じている
+    }
+  }
+
+  @Test
+  public void readTimeoutIsSharedAcrossAttempts() {
+    RetryPolicy policy = new RetryPolicy(2, 60, 0, 0);
+    long start = System.nanoTime();
+    assertEquals(20, policy.readTimeout(0, start, 100));
+    assertEquals(10, policy.readTimeout(0, start, 10));
+    assertEquals(100, RetryPolicy.NONE.readTimeout(0, start, 100));
+  }
+}
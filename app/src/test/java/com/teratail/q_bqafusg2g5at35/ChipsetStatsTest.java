@@ -0,0 +1,100 @@
+package com.teratail.q_bqafusg2g5at35;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class ChipsetStatsTest {
+  private static final Chipset.CMD CMD = Chipset.CMD.InCommRF;
+
+  private static long micros(long micros) {
+    return micros * 1000;
+  }
+
+  //i 番目のバケットは [2^i, 2^(i+1)) μs. 1μs 未満は 0, 上限を超えたら最後
+  @Test
+  public void bucketBoundaries() {
+    assertEquals(0, ChipsetStats.bucket(0));
+    assertEquals(0, ChipsetStats.bucket(999));
+    assertEquals(0, ChipsetStats.bucket(micros(1)));
+    assertEquals(1, ChipsetStats.bucket(micros(2)));
+    assertEquals(1, ChipsetStats.bucket(micros(3)));
+    assertEquals(2, ChipsetStats.bucket(micros(4)));
+    assertEquals(10, ChipsetStats.bucket(micros(1024)));
+    assertEquals(9, ChipsetStats.bucket(micros(1023)));
+    assertEquals(ChipsetStats.BUCKETS - 1, ChipsetStats.bucket(micros(1L << 40)));
+    assertEquals(0, ChipsetStats.bucket(-1));
+  }
+
+  @Test
+  public void histogramsAreKeptPerCommand() {
+    ChipsetStats stats = new ChipsetStats();
+    stats.recordAck(CMD, 10, micros(100)); //6
+    stats.recordAck(CMD, 12, micros(100));
+    stats.recordAck(Chipset.CMD.InSetRF, 8, micros(3)); //1
+    stats.recordResponse(CMD, 30, micros(2000)); //10
+
+    ChipsetStats.Snapshot snapshot = stats.snapshot();
+    long[] ack = snapshot.ackHistogram(CMD);
+    assertEquals(ChipsetStats.BUCKETS, ack.length);
+    assertEquals(2, ack[6]);
+    assertEquals(0, ack[1]);
+    assertEquals(1, snapshot.ackHistogram(Chipset.CMD.InSetRF)[1]);
+    assertEquals(1, snapshot.responseHistogram(CMD)[10]);
+    assertEquals(2, snapshot.count(CMD));
+    assertEquals(1, snapshot.count(Chipset.CMD.InSetRF));
+    assertEquals(0, snapshot.count(Chipset.CMD.SwitchRF));
+    assertEquals(22, snapshot.bytesOut(CMD));
+    assertEquals(30, snapshot.bytesIn(CMD));
+  }
+
+  //パーセンタイルはそれが入るバケットの上端
+  @Test
+  public void percentilesReturnBucketUpperBound() {
+    ChipsetStats stats = new ChipsetStats();
+    assertEquals(0, stats.snapshot().ackPercentile(CMD, 0.5));
+    for(int i=0; i<90; i++) stats.recordAck(CMD, 0, micros(5)); //2: [4, 8)
+    for(int i=0; i<9; i++) stats.recordAck(CMD, 0, micros(100)); //6: [64, 128)
+    stats.recordAck(CMD, 0, micros(5000)); //12: [4096, 8192)
+
+    ChipsetStats.Snapshot snapshot = stats.snapshot();
+    assertEquals(8, snapshot.ackPercentile(CMD, 0));
+    assertEquals(8, snapshot.ackPercentile(CMD, 0.5));
+    assertEquals(8, snapshot.ackPercentile(CMD, 0.9));
+    assertEquals(128, snapshot.ackPercentile(CMD, 0.91));
+    assertEquals(128, snapshot.ackPercentile(CMD, 0.99));
+    assertEquals(8192, snapshot.ackPercentile(CMD, 1));
+    assertEquals(0, snapshot.responsePercentile(CMD, 0.5));
+  }
+
+  @Test
+  public void errorsAndDelta() {
+    ChipsetStats stats = new ChipsetStats();
+    stats.recordCommunicationError(CommunicationException.RECEIVE_TIMEOUT_ERROR);
+    ChipsetStats.Snapshot before = stats.snapshot();
+    stats.recordCommunicationError(CommunicationException.CRC_ERROR | CommunicationException.COLLISION_ERROR);
+    stats.recordCommunicationError(0x80000000);
+    stats.recordStatusError(0x81);
+    stats.recordChecksumError();
+    stats.recordRetry();
+    stats.recordNullResponse();
+    stats.recordAck(CMD, 4, micros(10));
+
+    ChipsetStats.Snapshot after = stats.snapshot();
+    assertEquals(1, after.communicationErrors(7));
+    assertEquals(1, after.communicationErrors(2));
+    assertEquals(1, after.communicationErrors(3));
+    assertEquals(1, after.communicationErrors(31));
+    assertEquals(1, after.statusErrors(0x81));
+
+    ChipsetStats.Snapshot delta = after.delta(before);
+    assertEquals(0, delta.communicationErrors(7));
+    assertEquals(1, delta.communicationErrors(2));
+    assertEquals(1, delta.checksumErrors);
+    assertEquals(1, delta.retries);
+    assertEquals(1, delta.nullResponses);
+    assertEquals(1, delta.count(CMD));
+    assertEquals(16, delta.ackPercentile(CMD, 0.5));
+    assertEquals(1, before.communicationErrors(7)); //元の snapshot は変わらない
+  }
+}
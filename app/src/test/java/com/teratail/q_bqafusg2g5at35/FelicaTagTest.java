@@ -0,0 +1,137 @@
+package com.teratail.q_bqafusg2g5at35;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class FelicaTagTest {
+  private static final byte[] IDM = Bytes.of(1, 2, 3, 4, 5, 6, 7, 8), PMM = Bytes.of(0, 0xf1, 0, 0, 0, 1, 0x43, 0);
+
+  //service の block 番目のデータ
+  private static byte[] block(int service, int block) {
+    byte[] data = new byte[16];
+    data[0] = (byte)(service >> 8);
+    data[1] = (byte)service;
+    data[2] = (byte)(block >> 8);
+    data[3] = (byte)block;
+    return data;
+  }
+
+  private static byte[][] blocks(int service, int count) {
+    byte[][] blocks = new byte[count][];
+    for(int i=0; i<count; i++) blocks[i] = block(service, i);
+    return blocks;
+  }
+
+  private static class Fixture implements AutoCloseable {
+    final Device device;
+    final FelicaTag tag;
+
+    Fixture(int cardMaxBlocks, int... services) throws Exception {
+      SimulatedTransport transport = new SimulatedTransport().setTimeScale(0);
+      SimulatedTransport.Card card = new SimulatedTransport.Card(IDM, PMM, 3).setMaxBlocks(cardMaxBlocks);
+      for(int service : services) card.setBlocks(service, blocks(service, 0x110));
+      transport.addCard(card);
+      device = new Device(transport, Logger.NONE, "test");
+      tag = new FelicaTag(device, "212F", device.sense_ttf("212F"));
+    }
+
+    long inCommRF() {
+      return device.getStats().snapshot().count(Chipset.CMD.InCommRF);
+    }
+
+    //読んで, 指定順のデータが返ったことと送ったコマンドの数を確かめる
+    void assertReads(long commands, int[] service_codes, int[][] blocks) throws Exception {
+      long before = inCommRF();
+      byte[][] data = tag.read_without_encryption(service_codes, blocks);
+      int i = 0;
+      for(int s=0; s<service_codes.length; s++) {
+        for(int block : blocks[s]) assertArrayEquals(block(service_codes[s], block), data[i++]);
+      }
+      assertEquals(i, data.length);
+      assertEquals(commands, inCommRF() - before);
+    }
+
+    @Override
+    public void close() throws Exception {
+      device.close();
+    }
+  }
+
+  private static int[] range(int first, int count) {
+    int[] blocks = new int[count];
+    for(int i=0; i<count; i++) blocks[i] = first + i;
+    return blocks;
+  }
+
+  //1 コマンドに maxBlocks ブロックまで詰める
+  @Test
+  public void blocksArePackedUpToMaxBlocks() throws Exception {
+    try(Fixture f = new Fixture(15, 0x090f)) {
+      f.assertReads(1, new int[]{0x090f}, new int[][]{range(0, 15)});
+      f.assertReads(2, new int[]{0x090f}, new int[][]{range(0, 16)});
+      f.assertReads(2, new int[]{0x090f}, new int[][]{range(0, 30)});
+    }
+    try(Fixture f = new Fixture(4, 0x090f)) {
+      f.tag.setMaxBlocks(4);
+      f.assertReads(3, new int[]{0x090f}, new int[][]{range(0, 10)});
+    }
+  }
+
+  //カードの上限を超えて送るとカードがエラーを返す
+  @Test
+  public void cardLimitIsReported() throws Exception {
+    try(Fixture f = new Fixture(4, 0x090f)) {
+      try {
+        f.tag.read_without_encryption(0x090f, 0, 5);
+        fail("read 5 blocks from a 4 block card");
+      } catch(FelicaException e) {
+        assertEquals(0xa2, e.status2);
+      }
+    }
+  }
+
+  //同じサービスは 1 つのサービスリスト要素を共有し, maxServices を超えたら次のコマンドへ
+  @Test
+  public void servicesArePackedUpToMaxServices() throws Exception {
+    int a = 0x090f, b = 0x100b, c = 0x110b;
+    try(Fixture f = new Fixture(15, a, b, c)) {
+      f.assertReads(1, new int[]{a, b, a, c}, new int[][]{{0, 1}, {2}, {3}, {4, 5}});
+      f.tag.setMaxServices(2);
+      f.assertReads(2, new int[]{a, b, c}, new int[][]{{0}, {1}, {2}});
+      f.assertReads(1, new int[]{a, b, a}, new int[][]{{0}, {1}, {2}});
+    }
+  }
+
+  //ブロック番号 0x100 以上は 3 バイトの要素で送る
+  @Test
+  public void threeByteBlockListElements() throws Exception {
+    try(Fixture f = new Fixture(15, 0x090f)) {
+      f.assertReads(1, new int[]{0x090f}, new int[][]{{0x00ff, 0x0100, 0x010f, 0}});
+    }
+  }
+
+  //キャッシュに有るブロックは送らず, 無い分だけをまとめて読む
+  @Test
+  public void cachedBlocksAreNotSent() throws Exception {
+    try(Fixture f = new Fixture(15, 0x090f)) {
+      f.device.setBlockCache(new BlockCache(64).cache(0x090f, 0, 19, 0));
+      f.assertReads(1, new int[]{0x090f}, new int[][]{range(0, 10)});
+      f.assertReads(0, new int[]{0x090f}, new int[][]{range(0, 10)});
+      f.assertReads(1, new int[]{0x090f}, new int[][]{range(5, 20)}); //10..24 の 15 ブロック
+      f.assertReads(1, new int[]{0x090f}, new int[][]{range(15, 10)}); //20..24 は規則の外
+    }
+  }
+
+  @Test
+  public void unknownServiceIsFelicaException() throws Exception {
+    try(Fixture f = new Fixture(15, 0x090f)) {
+      try {
+        f.tag.read_without_encryption(0x100b, 0, 1);
+        fail("read unknown service");
+      } catch(FelicaException e) {
+        assertEquals(0xa6, e.status2);
+      }
+    }
+  }
+}
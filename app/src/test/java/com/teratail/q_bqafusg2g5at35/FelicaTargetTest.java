@@ -0,0 +1,94 @@
+package com.teratail.q_bqafusg2g5at35;
+
+import org.junit.Test;
+
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+public class FelicaTargetTest {
+  private static final byte[] IDM = Bytes.of(1, 2, 3, 4, 5, 6, 7, 8), PMM = Bytes.of(0, 0xf1, 0, 0, 0, 1, 0x43, 0);
+  private static final byte[] BLOCK = Bytes.of(0x10, 0x11, 0x12, 0x13, 0x14, 0x15, 0x16, 0x17,
+          0x18, 0x19, 0x1a, 0x1b, 0x1c, 0x1d, 0x1e, 0x1f);
+
+  //commands を順に送り, 各コマンドへの応答(長さバイトから. 答えなければ null)を集めるリーダ
+  private static class ScriptedInitiator implements SimulatedTransport.Initiator {
+    private final Deque<byte[]> commands;
+    final List<byte[]> responses = new ArrayList<>();
+    private boolean sent;
+
+    ScriptedInitiator(byte[]... commands) {
+      this.commands = new ArrayDeque<>(Arrays.asList(commands));
+    }
+
+    @Override
+    public byte[] next(byte[] response) {
+      if(sent) responses.add(response);
+      byte[] command = commands.poll();
+      sent = command != null;
+      return command;
+    }
+  }
+
+  private static byte[] frame(byte[] command) {
+    return Bytes.join(Bytes.of(command.length + 1), command);
+  }
+
+  //SimulatedTransport のリーダからポーリングされ, ブロックを読まれる
+  @Test
+  public void answersPollingAndReadThroughInitiator() throws Exception {
+    FelicaTarget target = new FelicaTarget(IDM, PMM, 0x0003).setBlock(0x090f, 0, BLOCK);
+    byte[] read = Bytes.join(Bytes.join(Bytes.of(0x06), IDM), Bytes.of(1, 0x0f, 0x09, 1, 0x80, 0));
+    ScriptedInitiator initiator = new ScriptedInitiator(
+            frame(Bytes.of(0x00, 0xff, 0xff, 0x01, 0x03)), //ワイルドカード, システムコード要求, 4 スロット
+            frame(Bytes.of(0x00, 0x00, 0x03, 0x00, 0x00)), //自分のシステムコード
+            frame(Bytes.of(0x00, 0x80, 0x00, 0x00, 0x00)), //他のシステムコード
+            frame(read),
+            frame(Bytes.of(0x99, 0x00))); //知らないコマンド
+    SimulatedTransport transport = new SimulatedTransport().setTimeScale(0);
+    transport.setInitiator(initiator, 0);
+
+    try(Device device = new Device(transport, Logger.NONE, "test")) {
+      assertEquals(3, device.listen_ttf(target, 20));
+    }
+
+    byte[] sensf_res = Bytes.join(Bytes.join(Bytes.of(0x01), IDM), PMM);
+    assertEquals(5, initiator.responses.size());
+    assertArrayEquals(frame(Bytes.join(sensf_res, Bytes.of(0x00, 0x03))), initiator.responses.get(0));
+    assertArrayEquals(frame(sensf_res), initiator.responses.get(1));
+    assertNull(initiator.responses.get(2));
+    assertArrayEquals(frame(Bytes.join(Bytes.join(Bytes.join(Bytes.of(0x07), IDM), Bytes.of(0, 0, 1)), BLOCK)),
+            initiator.responses.get(3));
+    assertNull(initiator.responses.get(4));
+    assertEquals(3, target.getResponses());
+    assertEquals(2, target.getMisses());
+  }
+
+  //受信からの時間が PMm の期限を超えたものだけを数える
+  @Test
+  public void hostOverBudgetComparesWithPmmBudget() {
+    FelicaTarget target = new FelicaTarget(IDM, PMM, 0x0003);
+    target.prepare(20);
+    byte[] sensf_req = frame(Bytes.of(0x00, 0xff, 0xff, 0x00, 0x00));
+
+    assertNotNull(target.answer(sensf_req, 0, sensf_req.length, System.nanoTime()));
+    assertEquals(0, target.getHostOverBudget());
+
+    long late = 10 * 1000000L; //SENSF_RES の期限 2.417ms を大きく超える
+    assertNotNull(target.answer(sensf_req, 0, sensf_req.length, System.nanoTime() - late));
+    assertEquals(1, target.getHostOverBudget());
+    assertTrue(target.getMaxHostTurnaroundNanos() >= late);
+    assertEquals(2, target.getResponses());
+  }
+
+  //長さバイトが合わなければ答えない
+  @Test
+  public void lengthMismatchIsMiss() {
+    FelicaTarget target = new FelicaTarget(IDM, PMM, 0x0003);
+    target.prepare(20);
+    byte[] sensf_req = frame(Bytes.of(0x00, 0xff, 0xff, 0x00, 0x00));
+    sensf_req[0]++;
+    assertNull(target.answer(sensf_req, 0, sensf_req.length, System.nanoTime()));
+    assertEquals(1, target.getMisses());
+  }
+}
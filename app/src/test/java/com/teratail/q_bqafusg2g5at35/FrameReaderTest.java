@@ -0,0 +1,123 @@
+package com.teratail.q_bqafusg2g5at35;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+public class FrameReaderTest {
+  private static final byte[] ACK = Chipset.ACK;
+  private static final byte[] ERR = Bytes.of(0, 0, 0xff, 0xff, 0xff);
+  private static final byte[] DATA = Frame.createRequest(Bytes.of(0xd7, 0x07, 0x00)).frame;
+  private static final byte[] LONG = Frame.createRequest(new byte[200]).frame;
+
+  //決めた通りに分けた転送を返す. 無くなったら受信タイムアウト
+  private static class ScriptedTransport implements Transport {
+    private final Deque<byte[]> transfers = new ArrayDeque<>();
+
+    ScriptedTransport add(byte[] bytes, int from, int to) {
+      if(from < to) transfers.add(Arrays.copyOfRange(bytes, from, to));
+      return this;
+    }
+    ScriptedTransport add(byte[] bytes) {
+      return add(bytes, 0, bytes.length);
+    }
+
+    @Override
+    public void setLogger(Logger log) {}
+    @Override
+    public void write(byte[] bytes) {}
+    @Override
+    public byte[] read(int timeout) throws IOException {
+      byte[] transfer = transfers.poll();
+      if(transfer == null) throw new IOException("receive error: len=-1");
+      return transfer;
+    }
+    @Override
+    public void close() {}
+  }
+
+  private static void assertFrame(FrameReader reader, Transport transport, byte[] expected, String message) throws IOException {
+    int n = reader.next(transport, 100);
+    assertEquals(message, expected.length, n);
+    assertArrayEquals(message, expected, Arrays.copyOf(reader.buffer(), n));
+  }
+
+  @Test
+  public void splitEachFrameAtEveryOffset() throws IOException {
+    for(byte[] frame : new byte[][]{ACK, ERR, DATA, LONG}) {
+      for(int k=1; k<frame.length; k++) {
+        ScriptedTransport transport = new ScriptedTransport().add(frame, 0, k).add(frame, k, frame.length).add(ACK);
+        FrameReader reader = new FrameReader(Frame.MAX_LENGTH);
+        String message = Bytes.toString(frame, 0, 5) + " split at " + k;
+        assertFrame(reader, transport, frame, message);
+        assertFrame(reader, transport, ACK, message);
+      }
+    }
+  }
+
+  @Test
+  public void splitCoalescedAckAndDataAtEveryOffset() throws IOException {
+    for(byte[] frame : new byte[][]{DATA, LONG}) {
+      byte[] stream = Bytes.join(ACK, frame);
+      for(int k=1; k<stream.length; k++) {
+        ScriptedTransport transport = new ScriptedTransport().add(stream, 0, k).add(stream, k, stream.length);
+        FrameReader reader = new FrameReader(Frame.MAX_LENGTH);
+        String message = "ACK+DATA split at " + k;
+        assertFrame(reader, transport, ACK, message);
+        assertFrame(reader, transport, frame, message);
+      }
+    }
+  }
+
+  @Test
+  public void errAloneInItsTransfer() throws IOException {
+    ScriptedTransport transport = new ScriptedTransport().add(ACK).add(ERR);
+    FrameReader reader = new FrameReader(Frame.MAX_LENGTH);
+    assertFrame(reader, transport, ACK, "ACK");
+    assertFrame(reader, transport, ERR, "ERR");
+  }
+
+  //通常フレーム(00 00 ff LEN LCS)は組み立てずにエラーにし, 続きから同期を探す
+  @Test
+  public void normalFrameIsRejected() throws IOException {
+    byte[] normal = Bytes.of(0, 0, 0xff, 0x03, 0xfd, 0xd7, 0x07, 0x00, 0x22, 0x00);
+    ScriptedTransport transport = new ScriptedTransport().add(Bytes.join(normal, ACK)).add(DATA);
+    FrameReader reader = new FrameReader(Frame.MAX_LENGTH);
+    try {
+      reader.next(transport, 100);
+      fail("normal frame was returned");
+    } catch(IllegalStateException e) {
+      assertEquals("unsupported frame: normal frame", e.getMessage());
+    }
+    assertFrame(reader, transport, ACK, "ACK after normal frame");
+    assertFrame(reader, transport, DATA, "DATA after normal frame");
+  }
+
+  @Test
+  public void dataInFixedSizeTransfers() throws IOException {
+    for(int size : new int[]{1, 2, 5, 7, 64}) {
+      ScriptedTransport transport = new ScriptedTransport();
+      for(int i=0; i<LONG.length; i+=size) transport.add(LONG, i, Math.min(LONG.length, i + size));
+      assertFrame(new FrameReader(Frame.MAX_LENGTH), transport, LONG, size + " byte transfers");
+    }
+    byte[] frame = Frame.createRequest(Bytes.of(0xd7, 0x05, 0x00, 0x00, 0x00, 0x00, 0x00)).frame; //17 バイト
+    ScriptedTransport transport = new ScriptedTransport().add(frame, 0, 5).add(frame, 5, frame.length);
+    assertFrame(new FrameReader(Frame.MAX_LENGTH), transport, frame, "5+12");
+  }
+
+  @Test
+  public void senseSurvivesTransferShaping() throws Exception {
+    int[][] shapes = {{1, 0}, {5, 0}, {11, 1}, {64, 1}};
+    for(int[] shape : shapes) {
+      SimulatedTransport transport = new SimulatedTransport().setTimeScale(0).setTransferShaping(shape[0], shape[1] != 0);
+      transport.addCard(new SimulatedTransport.Card(Bytes.of(1, 2, 3, 4, 5, 6, 7, 8), Bytes.of(0, 0xf1, 0, 0, 0, 1, 0x43, 0), 3));
+      try(Device device = new Device(transport, Logger.NONE, "test")) {
+        assertNotNull("transfer " + shape[0] + " coalesce " + shape[1], device.sense_ttf("212F"));
+        assertEquals(0, device.getStats().snapshot().checksumErrors);
+      }
+    }
+  }
+}
@@ -0,0 +1,116 @@
+package com.teratail.q_bqafusg2g5at35;
+
+import org.junit.Test;
+
+import java.util.*;
+import java.util.function.Supplier;
+
+import static org.junit.Assert.*;
+
+public class LoggerTest {
+  //level 以上だけを lines に残す
+  private static class Recorder implements Logger {
+    private final Level level;
+    final List<String> lines = new ArrayList<>();
+
+    Recorder(Level level) {
+      this.level = level;
+    }
+
+    @Override
+    public Level level() {
+      return level;
+    }
+    @Override
+    public void log(String s) {
+      lines.add("I:" + s);
+    }
+    @Override
+    public void debug(String s) {
+      lines.add("D:" + s);
+    }
+    @Override
+    public void error(String s) {
+      lines.add("E:" + s);
+    }
+  }
+
+  //呼ばれた回数を数える
+  private static class Counting implements Supplier<String> {
+    int calls;
+
+    @Override
+    public String get() {
+      calls++;
+      return "message";
+    }
+  }
+
+  @Test
+  public void supplierIsCalledOnlyWhenEnabled() {
+    Recorder info = new Recorder(Logger.Level.INFO);
+    Counting s = new Counting();
+    info.debug(s);
+    assertEquals(0, s.calls);
+    info.log(s);
+    info.error(s);
+    assertEquals(2, s.calls);
+    assertEquals(Arrays.asList("I:message", "E:message"), info.lines);
+
+    Recorder none = new Recorder(Logger.Level.NONE);
+    none.debug(s);
+    none.log(s);
+    none.error(s);
+    Logger.NONE.error(s);
+    assertEquals(2, s.calls);
+    assertTrue(none.lines.isEmpty());
+  }
+
+  @Test
+  public void levels() {
+    Logger debug = new Recorder(Logger.Level.DEBUG), error = new Recorder(Logger.Level.ERROR);
+    assertTrue(debug.isEnabled(Logger.Level.DEBUG));
+    assertTrue(debug.isEnabled(Logger.Level.ERROR));
+    assertFalse(debug.isEnabled(Logger.Level.NONE));
+    assertFalse(error.isEnabled(Logger.Level.INFO));
+    assertTrue(error.isEnabled(Logger.Level.ERROR));
+    assertFalse(Logger.NONE.isEnabled(Logger.Level.ERROR));
+  }
+
+  //DEBUG が無効ならコマンドの往復でフレームのダンプ(Bytes.toString)を組み立てない. 定数の文字列は渡って来ても良い
+  @Test
+  public void noFrameDumpWhenDebugDisabled() throws Exception {
+    Recorder info = new Recorder(Logger.Level.INFO) {
+      @Override
+      public void debug(String s) {
+        assertFalse("debug: " + s, s.matches(".*([0-9a-f]{2} ){3}.*"));
+      }
+    };
+    SimulatedTransport transport = new SimulatedTransport().setTimeScale(0);
+    transport.addCard(new SimulatedTransport.Card(Bytes.of(1, 2, 3, 4, 5, 6, 7, 8), Bytes.of(0, 0xf1, 0, 0, 0, 1, 0x43, 0), 3));
+    try(Device device = new Device(transport, info, "test")) {
+      assertNotNull(device.sense_ttf("212F"));
+      assertEquals(1, device.sense_ttf_multi("212F", 4, 2).size());
+    }
+  }
+
+  @Test
+  public void hexTableCoversEveryByte() {
+    byte[] all = new byte[256];
+    for(int i=0; i<256; i++) all[i] = (byte)i;
+    String hex = Bytes.toString(all);
+    assertEquals(256 * 3 - 1, hex.length());
+    String[] parts = hex.split(" ");
+    for(int i=0; i<256; i++) assertEquals(String.format("%02x", i), parts[i]);
+  }
+
+  @Test
+  public void hexRange() {
+    byte[] bytes = Bytes.of(0x00, 0x7f, 0x80, 0xff);
+    assertEquals("7f 80", Bytes.toString(bytes, 1, 3));
+    assertEquals("80 ff", Bytes.toString(bytes, 2, 10)); //終わりは配列の長さまで
+    assertEquals("", Bytes.toString(bytes, 2, 2));
+    assertEquals("", Bytes.toString(bytes, 3, 1));
+    assertEquals("", Bytes.toString(new byte[0]));
+  }
+}
@@ -0,0 +1,66 @@
+package com.teratail.q_bqafusg2g5at35;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class PmmTimeoutTest {
+  private static final double T0 = 0.3020; //[ms] 256 * 16 / fc
+  private static final double EPSILON = 1e-9;
+
+  private static byte[] pmm(int index, int parameter) {
+    byte[] pmm = new byte[8];
+    pmm[index] = (byte)parameter;
+    return pmm;
+  }
+
+  //T = T0 * ((B+1) * n + (A+1)) * 4^E. パラメータは E(2) B(3) A(3)
+  @Test
+  public void responseTimeFromParameter() {
+    assertEquals(T0 * 1 * 1, Device.ttf_response_time(pmm(Device.PMM_READ, 0x00), Device.PMM_READ, 0), EPSILON);
+    assertEquals(T0 * (1 + 1), Device.ttf_response_time(pmm(Device.PMM_READ, 0x00), Device.PMM_READ, 1), EPSILON);
+    assertEquals(T0 * (1 * 3 + 8), Device.ttf_response_time(pmm(Device.PMM_READ, 0x07), Device.PMM_READ, 3), EPSILON); //A=7
+    assertEquals(T0 * (8 * 3 + 1), Device.ttf_response_time(pmm(Device.PMM_READ, 0x38), Device.PMM_READ, 3), EPSILON); //B=7
+    assertEquals(T0 * (1 + 1) * 4, Device.ttf_response_time(pmm(Device.PMM_READ, 0x40), Device.PMM_READ, 1), EPSILON); //E=1
+    assertEquals(T0 * (8 * 15 + 8) * 64, Device.ttf_response_time(pmm(Device.PMM_READ, 0xff), Device.PMM_READ, 15), EPSILON);
+  }
+
+  //バイト位置毎に別のパラメータ
+  @Test
+  public void eachCommandGroupUsesItsOwnByte() {
+    byte[] pmm = Bytes.of(0x01, 0x20, 0x0b, 0x4b, 0x42, 0x85, 0xd0, 0xff);
+    assertEquals(T0 * (2 * 1 + 4) * 1, Device.ttf_response_time(pmm, Device.PMM_REQUEST_SERVICE, 1), EPSILON);
+    assertEquals(T0 * (2 * 0 + 4) * 4, Device.ttf_response_time(pmm, Device.PMM_REQUEST_RESPONSE, 0), EPSILON);
+    assertEquals(T0 * (1 * 2 + 3) * 4, Device.ttf_response_time(pmm, Device.PMM_AUTHENTICATION, 2), EPSILON);
+    assertEquals(T0 * (1 * 4 + 6) * 16, Device.ttf_response_time(pmm, Device.PMM_READ, 4), EPSILON);
+    assertEquals(T0 * (3 * 4 + 1) * 64, Device.ttf_response_time(pmm, Device.PMM_WRITE, 4), EPSILON);
+    assertEquals(T0 * (8 * 1 + 8) * 64, Device.ttf_response_time(pmm, Device.PMM_OTHER, 1), EPSILON);
+  }
+
+  //in_comm_rf に渡す ms は切り上げ
+  @Test
+  public void timeoutRoundsUp() {
+    assertEquals(1, Device.ttf_timeout(pmm(Device.PMM_READ, 0x01), Device.PMM_READ, 1)); //0.906
+    assertEquals(34, Device.ttf_timeout(pmm(Device.PMM_READ, 0x85), Device.PMM_READ, 1)); //33.824
+    assertEquals(2474, Device.ttf_timeout(pmm(Device.PMM_READ, 0xff), Device.PMM_READ, 15)); //2473.984
+    assertEquals(1, Device.ttf_timeout(pmm(Device.PMM_READ, 0x00), Device.PMM_READ, 0)); //0.302
+    for(int p=0; p<256; p++) {
+      for(int n=0; n<=15; n++) {
+        double t = Device.ttf_response_time(pmm(Device.PMM_READ, p), Device.PMM_READ, n);
+        int timeout = Device.ttf_timeout(pmm(Device.PMM_READ, p), Device.PMM_READ, n);
+        assertTrue(p + " " + n, timeout >= t && timeout < t + 1);
+      }
+    }
+  }
+
+  //ブロック数が増えるほど長くなる
+  @Test
+  public void timeoutGrowsWithBlocks() {
+    for(int p=0; p<256; p++) {
+      byte[] pmm = pmm(Device.PMM_READ, p);
+      for(int n=1; n<=15; n++) {
+        assertTrue(Device.ttf_response_time(pmm, Device.PMM_READ, n) > Device.ttf_response_time(pmm, Device.PMM_READ, n - 1));
+      }
+    }
+  }
+}
@@ -0,0 +1,113 @@
+package com.teratail.q_bqafusg2g5at35;
+
+import org.junit.Test;
+
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+public class PollSchedulerTest {
+  private static final byte[] IDM = Bytes.of(1, 2, 3, 4, 5, 6, 7, 8), PMM = Bytes.of(0, 0xf1, 0, 0, 0, 1, 0x43, 0);
+
+  private static Device newDevice(SimulatedTransport transport) throws Exception {
+    return new Device(transport.setTimeScale(0), Logger.NONE, "test");
+  }
+
+  //rounds 巡のうち各方式を試した回数
+  private static Map<String,Integer> attempts(PollScheduler scheduler, int rounds, String... brtys) throws Exception {
+    Map<String,Integer> attempts = new LinkedHashMap<>();
+    for(String brty : brtys) attempts.put(brty, 0);
+    for(int i=0; i<rounds; i++) {
+      scheduler.poll();
+      for(String brty : brtys) if(scheduler.wasAttempted(brty)) attempts.merge(brty, 1, Integer::sum);
+    }
+    return attempts;
+  }
+
+  //重みは最大の重みに対する頻度
+  @Test
+  public void creditsFollowWeights() throws Exception {
+    try(Device device = newDevice(new SimulatedTransport())) {
+      PollScheduler scheduler = new PollScheduler(device).add("212F", 4, 10).add("106A", 2, 10).add("106B", 3, 10);
+      Map<String,Integer> attempts = attempts(scheduler, 12, "212F", "106A", "106B");
+      assertEquals(12, attempts.get("212F").intValue());
+      assertEquals(6, attempts.get("106A").intValue());
+      assertEquals(9, attempts.get("106B").intValue());
+    }
+  }
+
+  //重み 1 と 2 なら 1 は二巡に一度, 巡の順に交互
+  @Test
+  public void lowerWeightAlternates() throws Exception {
+    try(Device device = newDevice(new SimulatedTransport())) {
+      PollScheduler scheduler = new PollScheduler(device).add("212F", 2, 10).add("106A", 1, 10);
+      List<Boolean> a = new ArrayList<>();
+      for(int i=0; i<6; i++) {
+        scheduler.poll();
+        assertTrue(scheduler.wasAttempted("212F"));
+        a.add(scheduler.wasAttempted("106A"));
+      }
+      assertEquals(Arrays.asList(false, true, false, true, false, true), a);
+    }
+  }
+
+  //見つかった方式を次の巡の先頭にし, stopOnFirst ならそこで巡を終える
+  @Test
+  public void foundTechnologyIsTriedFirst() throws Exception {
+    SimulatedTransport transport = new SimulatedTransport();
+    try(Device device = newDevice(transport)) {
+      PollScheduler scheduler = new PollScheduler(device).add("106A", 1, 10).add("212F", 1, 10).setStopOnFirst(true);
+      assertTrue(scheduler.poll().isEmpty());
+      assertTrue(scheduler.wasAttempted("106A"));
+      assertTrue(scheduler.wasAttempted("212F"));
+
+      transport.addCard(new SimulatedTransport.Card(IDM, PMM, 3));
+      List<PollScheduler.Result> results = scheduler.poll();
+      assertEquals(1, results.size());
+      assertEquals("212F", results.get(0).brty);
+      assertArrayEquals(IDM, results.get(0).id());
+      assertEquals(Bytes.toLong(IDM, 0), results.get(0).key());
+
+      assertEquals(1, scheduler.poll().size());
+      assertTrue(scheduler.wasAttempted("212F"));
+      assertFalse(scheduler.wasAttempted("106A")); //212F が先頭で見つかったので試さない
+    }
+  }
+
+  //8 バイトを超える UID は畳み込んで long にする
+  @Test
+  public void keyFoldsLongIds() {
+    byte[] sel = Bytes.of(0x44, 0x00, 0x00);
+    PollScheduler.Result seven = new PollScheduler.Result("106A", Bytes.join(sel, Bytes.of(4, 1, 2, 3, 4, 5, 6)));
+    assertEquals(0x04010203040506L, seven.key());
+    byte[] uid = Bytes.of(1, 2, 3, 4, 5, 6, 7, 8, 9, 10);
+    PollScheduler.Result ten = new PollScheduler.Result("106A", Bytes.join(sel, uid));
+    long expected = (0x0102030405060708L * 31 ^ 9) * 31 ^ 10;
+    assertEquals(expected, ten.key());
+    assertEquals(0x01020304L, new PollScheduler.Result("106B", Bytes.of(0x50, 1, 2, 3, 4)).key());
+  }
+
+  @Test
+  public void invalidArguments() throws Exception {
+    try(Device device = newDevice(new SimulatedTransport())) {
+      PollScheduler scheduler = new PollScheduler(device);
+      try {
+        scheduler.poll();
+        fail("polled without technology");
+      } catch(IllegalStateException expected) {
+      }
+      for(Runnable bad : Arrays.<Runnable>asList(
+              () -> scheduler.add("212X", 1, 10),
+              () -> scheduler.add("212F", 0, 10),
+              () -> scheduler.add("212F", 1, -1),
+              () -> scheduler.setFelicaSlots(3, 1),
+              () -> scheduler.setFelicaSlots(4, 0))) {
+        try {
+          bad.run();
+          fail("accepted");
+        } catch(IllegalArgumentException expected) {
+        }
+      }
+    }
+  }
+}
@@ -0,0 +1,88 @@
+package com.teratail.q_bqafusg2g5at35;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.concurrent.*;
+
+import static org.junit.Assert.*;
+
+public class PollerTest {
+  private static final SimulatedTransport.Card CARD = new SimulatedTransport.Card(
+          Bytes.of(1, 2, 3, 4, 5, 6, 7, 8), Bytes.of(0, 0xf1, 0, 0, 0, 1, 0x43, 0), 3);
+
+  //onArrival で落ちる通知先. 止まったことは onError で知らせる
+  private static class Failing implements Poller.Listener {
+    final CompletableFuture<IOException> error = new CompletableFuture<>();
+
+    @Override
+    public void onArrival(long id, PollScheduler.Result result) {
+      throw new IllegalStateException("listener bug");
+    }
+    @Override
+    public void onDeparture(long id) {}
+    @Override
+    public void onError(IOException e) {
+      error.complete(e);
+    }
+  }
+
+  private static void assertStopsAndReports(Poller poller, Failing listener) throws Exception {
+    poller.start();
+    try {
+      IOException e = listener.error.get(2, TimeUnit.SECONDS);
+      assertTrue(e.getCause() instanceof IllegalStateException);
+      for(int i=0; i<100 && poller.isRunning(); i++) Thread.sleep(10);
+      assertFalse(poller.isRunning());
+    } finally {
+      poller.stop();
+    }
+  }
+
+  //カードが無ければ interval が 0 でも周期が伸び, RF を入れている割合が下がる
+  @Test
+  public void lowPowerBacksOffFromZeroInterval() throws Exception {
+    SimulatedTransport transport = new SimulatedTransport().setTimeScale(0).setLatency(1);
+    Device device = new Device(transport, Logger.NONE, "test");
+    Poller poller = new Poller(device, "212F", new Poller.Listener() {
+      @Override
+      public void onArrival(long id, PollScheduler.Result result) {}
+      @Override
+      public void onDeparture(long id) {}
+    }).setInterval(0).setLowPower(200);
+    try {
+      poller.start();
+      Thread.sleep(300);
+    } finally {
+      poller.stop();
+      device.close();
+    }
+    assertTrue("cycles " + poller.getCycles(), poller.getCycles() < 20);
+    assertTrue("duty " + poller.getDutyCycle(), poller.getDutyCycle() < 0.5);
+  }
+
+  @Test
+  public void runtimeExceptionStopsThreadAndIsReported() throws Exception {
+    SimulatedTransport transport = new SimulatedTransport().setTimeScale(0).addCard(CARD);
+    Device device = new Device(transport, Logger.NONE, "test");
+    try {
+      Failing listener = new Failing();
+      assertStopsAndReports(new Poller(device, "212F", listener).setInterval(1), listener);
+    } finally {
+      device.close();
+    }
+  }
+
+  @Test
+  public void runtimeExceptionStopsReaderLoopAndIsReported() throws Exception {
+    SimulatedTransport transport = new SimulatedTransport().setTimeScale(0).addCard(CARD);
+    ReaderSession session = new ReaderSession(() -> transport, Logger.NONE);
+    AsyncReader reader = new AsyncReader(session, "test");
+    try {
+      Failing listener = new Failing();
+      assertStopsAndReports(new Poller(new PollScheduler(session).add("212F", 1, 10), reader, listener).setInterval(1), listener);
+    } finally {
+      reader.close();
+    }
+  }
+}
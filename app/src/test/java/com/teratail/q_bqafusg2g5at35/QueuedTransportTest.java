@@ -0,0 +1,115 @@
+package com.teratail.q_bqafusg2g5at35;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+public class QueuedTransportTest {
+  private static final byte[] GET_FIRMWARE_VERSION = Frame.createRequest(Bytes.of(0xd6, 0x20)).frame;
+  private static final byte[] FIRMWARE_VERSION = Frame.createRequest(Bytes.of(0xd7, 0x21, 0x11, 0x01)).frame;
+
+  //length バイトになるまで読み繋ぐ
+  private static byte[] readFully(Transport transport, int length) throws IOException {
+    byte[] buffer = new byte[QueuedTransport.BUFFER_SIZE], bytes = new byte[0];
+    while(bytes.length < length) {
+      int n = transport.read(buffer, 0, 100);
+      assertTrue(n > 0);
+      bytes = Bytes.join(bytes, Arrays.copyOf(buffer, n));
+    }
+    assertEquals(length, bytes.length);
+    return bytes;
+  }
+
+  //ACK と応答を受ける. depth より多く往復するので, 受けた buffer が出し直されていないと続かない
+  private static void assertRoundTrips(int depth, int count) throws IOException {
+    SimulatedTransport endpoint = new SimulatedTransport().setTimeScale(0);
+    try(QueuedTransport transport = new QueuedTransport(endpoint, depth)) {
+      for(int i=0; i<count; i++) {
+        transport.write(GET_FIRMWARE_VERSION);
+        assertArrayEquals("depth=" + depth + " #" + i, Chipset.ACK, transport.read(100));
+        assertArrayEquals("depth=" + depth + " #" + i, FIRMWARE_VERSION, transport.read(100));
+      }
+    }
+  }
+
+  @Test
+  public void depthOneRequeuesEachBuffer() throws IOException {
+    assertRoundTrips(1, 8);
+  }
+
+  @Test
+  public void depthNRequeuesEachBuffer() throws IOException {
+    assertRoundTrips(4, 16);
+  }
+
+  //1 回の転送がフレームの途中で切れても, 受けた分だけ順に返す
+  @Test
+  public void partialTransfersAreReturnedInOrder() throws IOException {
+    for(int depth : new int[]{1, 3}) {
+      SimulatedTransport endpoint = new SimulatedTransport().setTimeScale(0).setTransferShaping(3, false);
+      try(QueuedTransport transport = new QueuedTransport(endpoint, depth)) {
+        for(int i=0; i<4; i++) {
+          transport.write(GET_FIRMWARE_VERSION);
+          byte[] expected = Bytes.join(Chipset.ACK, FIRMWARE_VERSION);
+          assertArrayEquals("depth=" + depth, expected, readFully(transport, expected.length));
+        }
+      }
+    }
+  }
+
+  //応答が届かなければタイムアウトし, 出した転送はそのまま次の応答を受ける
+  @Test
+  public void droppedResponseTimesOutAndRecovers() throws IOException {
+    SimulatedTransport endpoint = new SimulatedTransport().setTimeScale(0);
+    try(QueuedTransport transport = new QueuedTransport(endpoint, 2)) {
+      endpoint.injectFault(SimulatedTransport.Fault.DROP_RESPONSE);
+      transport.write(GET_FIRMWARE_VERSION);
+      assertArrayEquals(Chipset.ACK, transport.read(100));
+      try {
+        transport.read(20);
+        fail("dropped response was read");
+      } catch(IOException e) {
+        assertEquals("receive error: len=-1", e.getMessage());
+      }
+      transport.write(Chipset.ACK); //取り消し
+      for(int i=0; i<4; i++) {
+        transport.write(GET_FIRMWARE_VERSION);
+        assertArrayEquals(Chipset.ACK, transport.read(100));
+        assertArrayEquals(FIRMWARE_VERSION, transport.read(100));
+      }
+    }
+  }
+
+  //受け取り側に入らない転送はエラーにするが, buffer は出し直す
+  @Test
+  public void tooSmallBufferIsErrorButRequeues() throws IOException {
+    SimulatedTransport endpoint = new SimulatedTransport().setTimeScale(0);
+    try(QueuedTransport transport = new QueuedTransport(endpoint, 1)) {
+      transport.write(GET_FIRMWARE_VERSION);
+      try {
+        transport.read(new byte[4], 0, 100);
+        fail("ACK fit in 4 bytes");
+      } catch(IOException e) {
+        assertEquals("receive error: len=" + Chipset.ACK.length, e.getMessage());
+      }
+      assertArrayEquals(FIRMWARE_VERSION, transport.read(100));
+    }
+  }
+
+  //閉じたら出している転送も取り消される
+  @Test
+  public void closeCancelsQueuedTransfers() throws IOException {
+    SimulatedTransport endpoint = new SimulatedTransport().setTimeScale(0);
+    QueuedTransport transport = new QueuedTransport(endpoint, 2);
+    transport.close();
+    try {
+      transport.read(100);
+      fail("read after close");
+    } catch(IOException e) {
+      assertTrue(e.getMessage(), e.getMessage().startsWith("receive error"));
+    }
+  }
+}
@@ -0,0 +1,56 @@
+package com.teratail.q_bqafusg2g5at35;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class ReaderPoolTest {
+  //通知中に close() しても, close() はその通知の終わりを待ち, 戻った後は何も通知しない
+  @Test
+  public void noEventsAfterClose() throws Exception {
+    CountDownLatch inside = new CountDownLatch(1);
+    AtomicInteger active = new AtomicInteger(), events = new AtomicInteger();
+    ReaderPool pool = new ReaderPool(Logger.NONE,
+            session -> new PollScheduler(session).add("212F", 1, 10),
+            new ReaderPool.Listener() {
+              @Override
+              public void onArrival(String reader, long id, PollScheduler.Result result) {
+                event();
+              }
+              @Override
+              public void onDeparture(String reader, long id) {
+                event();
+              }
+              @Override
+              public void onError(String reader, IOException e) {
+                event();
+              }
+              private void event() {
+                active.incrementAndGet();
+                events.incrementAndGet();
+                inside.countDown();
+                try {
+                  Thread.sleep(100);
+                } catch(InterruptedException e) {
+                  Thread.currentThread().interrupt();
+                }
+                active.decrementAndGet();
+              }
+            });
+    SimulatedTransport transport = new SimulatedTransport().setTimeScale(0);
+    transport.addCard(new SimulatedTransport.Card(Bytes.of(1, 2, 3, 4, 5, 6, 7, 8), Bytes.of(0, 0xf1, 0, 0, 0, 1, 0x43, 0), 3));
+    pool.attach("reader", () -> transport);
+
+    assertTrue(inside.await(2, TimeUnit.SECONDS));
+    pool.close();
+    assertEquals(0, active.get());
+    int closed = events.get();
+    transport.clearCards(); //離れた通知が来ないこと
+    Thread.sleep(300);
+    assertEquals(closed, events.get());
+  }
+}
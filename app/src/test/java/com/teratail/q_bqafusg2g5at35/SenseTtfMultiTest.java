@@ -0,0 +1,70 @@
+package com.teratail.q_bqafusg2g5at35;
+
+import org.junit.Test;
+
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+public class SenseTtfMultiTest {
+  private static final byte[] PMM = Bytes.of(0, 0xf1, 0, 0, 0, 1, 0x43, 0);
+
+  //カードが選ぶスロットを slots の順に返す
+  private static class Slots extends Random {
+    private final Deque<Integer> slots = new ArrayDeque<>();
+
+    Slots(int... slots) {
+      for(int slot : slots) this.slots.add(slot);
+    }
+
+    @Override
+    public int nextInt(int bound) {
+      return slots.remove();
+    }
+  }
+
+  private static byte[] idm(int n) {
+    return Bytes.of(1, 2, 3, 4, 5, 6, 7, n);
+  }
+
+  //cards 枚を置いて sense_ttf_multi し, 見つけたカードの数と InCommRF の回数を確かめる
+  private static void assertPolls(int cards, int expectedFound, long expectedInCommRF, int... slots) throws Exception {
+    SimulatedTransport transport = new SimulatedTransport(new Slots(slots)).setTimeScale(0);
+    for(int i=0; i<cards; i++) transport.addCard(new SimulatedTransport.Card(idm(i), PMM, 3));
+    try(Device device = new Device(transport, Logger.NONE, "test")) {
+      long before = device.getStats().snapshot().count(Chipset.CMD.InCommRF);
+      List<byte[]> found = device.sense_ttf_multi("212F", 4, 5);
+      assertEquals(expectedFound, found.size());
+      assertEquals(expectedInCommRF, device.getStats().snapshot().count(Chipset.CMD.InCommRF) - before);
+      Set<Long> ids = new HashSet<>();
+      for(byte[] sensf_res : found) assertTrue(ids.add(Bytes.toLong(sensf_res, 1)));
+    }
+  }
+
+  //壊れずに受けたら送り直さない
+  @Test
+  public void cleanResponseIsNotRepolled() throws Exception {
+    assertPolls(1, 1, 1, 2);
+    assertPolls(3, 3, 1, 0, 1, 3);
+  }
+
+  //同じスロットで壊れた間だけ送り直す
+  @Test
+  public void collisionIsRepolledUntilClean() throws Exception {
+    assertPolls(3, 3, 3,
+            0, 0, 1, //0 と 1 が衝突
+            0, 1, 0, //0 と 2 が衝突
+            0, 1, 2);
+  }
+
+  //attempts 回で諦める
+  @Test
+  public void repollingStopsAfterAttempts() throws Exception {
+    assertPolls(2, 0, 5, 3, 3, 3, 3, 3, 3, 3, 3, 3, 3);
+  }
+
+  @Test
+  public void noCardIsOnePoll() throws Exception {
+    assertPolls(0, 0, 1);
+  }
+}
@@ -0,0 +1,110 @@
+package com.teratail.q_bqafusg2g5at35;
+
+import org.junit.Test;
+
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+public class TapCacheTest {
+  //TapCache の番地 (hash は TapCache と同じ式)
+  private static int slot(long id, int slots) {
+    long h = id * 0x9e3779b97f4a7c15L;
+    return (int)(h ^ (h >>> 32)) & (slots - 1);
+  }
+
+  //番地が home の ID を count 個
+  private static long[] idsAt(int home, int slots, int count) {
+    long[] ids = new long[count];
+    for(long id = 1, n = 0; n < count; id++) {
+      if(slot(id, slots) == home) ids[(int)n++] = id;
+    }
+    return ids;
+  }
+
+  //同じ番地の連鎖の途中を消しても, 後ろの要素は詰められて見つかる. 表の端で折り返す連鎖も
+  @Test
+  public void deletionKeepsProbeChains() {
+    for(int home : new int[]{3, 14}) { //capacity 8 は 16 番地
+      long[] ids = idsAt(home, 16, 4);
+      for(int victim=0; victim<ids.length; victim++) {
+        TapCache cache = new TapCache(8, 1000);
+        for(long id : ids) assertTrue(cache.offer(id, 0));
+        assertTrue(cache.remove(ids[victim]));
+        assertFalse(cache.remove(ids[victim]));
+        assertEquals(3, cache.size());
+        for(int i=0; i<ids.length; i++) {
+          assertEquals("home=" + home + " victim=" + victim + " #" + i, i != victim, cache.contains(ids[i], 0));
+        }
+        assertTrue(cache.offer(ids[victim], 0)); //空いた所に入り直せる
+        for(long id : ids) assertTrue(cache.contains(id, 0));
+      }
+    }
+  }
+
+  @Test
+  public void offerSuppressesWithinTtl() {
+    TapCache cache = new TapCache(4, 100);
+    assertTrue(cache.offer(1, 0));
+    assertFalse(cache.offer(1, 100));
+    assertFalse(cache.offer(1, 150)); //居続ける限り抑止
+    assertTrue(cache.offer(1, 251));
+    assertTrue(cache.contains(1, 351));
+    assertFalse(cache.contains(1, 352));
+  }
+
+  //満杯なら期限切れを, 無ければ最も古いものを追い出す
+  @Test
+  public void fullCacheEvictsExpiredThenOldest() {
+    TapCache cache = new TapCache(3, 100);
+    cache.offer(1, 0);
+    cache.offer(2, 50);
+    cache.offer(3, 60);
+    cache.offer(4, 120); //1 が期限切れ
+    assertEquals(3, cache.size());
+    assertFalse(cache.contains(1, 120));
+    cache.offer(5, 130); //期限切れは無いので最も古い 2
+    assertFalse(cache.contains(2, 130));
+    assertTrue(cache.contains(3, 130));
+    assertTrue(cache.contains(4, 130));
+    assertTrue(cache.contains(5, 130));
+  }
+
+  //衝突の多い小さな表で, 追加/削除/期限切れ/追い出しを Map と突き合わせる
+  @Test
+  public void matchesReferenceModel() {
+    Random random = new Random(1);
+    for(int round=0; round<50; round++) {
+      int capacity = 1 + random.nextInt(12);
+      long ttl = 20;
+      TapCache cache = new TapCache(capacity, ttl);
+      Map<Long,Long> model = new HashMap<>();
+      for(long now=1; now<2000; now++) {
+        long id = random.nextInt(capacity * 3);
+        String message = "round " + round + " now " + now + " id " + id;
+        if(random.nextInt(4) == 0) {
+          assertEquals(message, model.remove(id) != null, cache.remove(id));
+        } else {
+          Long seen = model.get(id);
+          if(seen == null && model.size() == capacity) evict(model, now, ttl);
+          model.put(id, now);
+          assertEquals(message, seen == null || now - seen > ttl, cache.offer(id, now));
+        }
+        assertEquals(message, model.size(), cache.size());
+        for(long k=0; k<capacity * 3; k++) {
+          Long seen = model.get(k);
+          assertEquals(message + " contains " + k, seen != null && now - seen <= ttl, cache.contains(k, now));
+        }
+      }
+    }
+  }
+
+  private static void evict(Map<Long,Long> model, long now, long ttl) {
+    if(model.values().removeIf(time -> now - time > ttl)) return;
+    Long oldest = null;
+    for(Map.Entry<Long,Long> e : model.entrySet()) {
+      if(oldest == null || e.getValue() < model.get(oldest)) oldest = e.getKey();
+    }
+    model.remove(oldest);
+  }
+}
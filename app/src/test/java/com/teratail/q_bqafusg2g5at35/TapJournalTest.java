@@ -0,0 +1,132 @@
+package com.teratail.q_bqafusg2g5at35;
+
+import org.junit.Test;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+public class TapJournalTest {
+  private static File newDir() throws IOException {
+    return Files.createTempDirectory("taps").toFile();
+  }
+
+  private static void delete(File dir) {
+    File[] files = dir.listFiles();
+    if(files != null) for(File file : files) file.delete();
+    dir.delete();
+  }
+
+  //4 件毎のセグメントに id の記録を count 件書いて閉じる
+  private static File write(long id, int count) throws IOException {
+    File dir = newDir();
+    try(TapJournal journal = new TapJournal(dir, 4, 64, 1000, 16)) {
+      for(int i=0; i<count; i++) journal.append(1000 + i, "reader", "212F", id, 0);
+    }
+    return dir;
+  }
+
+  private static File segment(File dir, long first) {
+    return new File(dir, String.format("taps-%016x.log", first));
+  }
+
+  private static void corrupt(File file, long seq) throws IOException {
+    try(RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+      raf.seek(seq * TapJournal.RECORD_LENGTH + 8);
+      raf.write(raf.read() ^ 0x01);
+    }
+  }
+
+  private static List<Long> seqs(List<TapJournal.Tap> taps) {
+    List<Long> seqs = new ArrayList<>();
+    for(TapJournal.Tap tap : taps) seqs.add(tap.seq);
+    return seqs;
+  }
+
+  //古いセグメントの途中が壊れても, その 1 件だけを飛ばして後ろは残す
+  @Test
+  public void corruptRecordInClosedSegmentIsSkipped() throws IOException {
+    File dir = write(7, 10);
+    try {
+      corrupt(segment(dir, 0), 1);
+      try(TapJournal journal = new TapJournal(dir, 4, 64, 1000, 16)) {
+        assertEquals(10, journal.getDurable());
+        assertEquals(Arrays.asList(9L, 8L, 7L, 6L, 5L, 4L, 3L, 2L, 0L), seqs(journal.last(7, 16)));
+        assertEquals(4 * TapJournal.RECORD_LENGTH, segment(dir, 0).length());
+        assertEquals(10, journal.append(2000, "reader", "212F", 7, 0));
+      }
+    } finally {
+      delete(dir);
+    }
+  }
+
+  //最後のセグメントは最後の正しい 1 件より後ろ(書きかけ)だけを切る
+  @Test
+  public void onlyTornTailOfLastSegmentIsCut() throws IOException {
+    File dir = write(7, 11); //最後のセグメントは #8..#10
+    try {
+      File last = segment(dir, 8);
+      corrupt(last, 1); //#9
+      try(FileOutputStream out = new FileOutputStream(last, true)) {
+        out.write(new byte[30]);
+      }
+      try(TapJournal journal = new TapJournal(dir, 4, 64, 1000, 16)) {
+        assertEquals(11, journal.getDurable());
+        assertEquals(3 * TapJournal.RECORD_LENGTH, last.length());
+        assertEquals(Arrays.asList(10L, 8L, 7L), seqs(journal.last(7, 3)));
+      }
+
+      corrupt(last, 2); //#10 も壊れれば書きかけとみなす
+      try(TapJournal journal = new TapJournal(dir, 4, 64, 1000, 16)) {
+        assertEquals(9, journal.getDurable());
+        assertEquals(1 * TapJournal.RECORD_LENGTH, last.length());
+        assertEquals(9, journal.append(2000, "reader", "212F", 7, 0));
+      }
+    } finally {
+      delete(dir);
+    }
+  }
+
+  //索引は直近に現れた maxIds 個の ID だけ
+  @Test
+  public void indexKeepsMostRecentIds() throws IOException {
+    File dir = newDir();
+    try {
+      try(TapJournal journal = new TapJournal(dir, 4, 64, 1000, 16, 2, 0)) {
+        journal.append(1000, "reader", "212F", 1, 0);
+        journal.append(1001, "reader", "212F", 2, 0);
+        assertEquals(1, journal.last(1, 1).size()); //1 が新しくなる
+        journal.append(1002, "reader", "212F", 3, 0);
+        assertEquals(1, journal.last(1, 1).size());
+        assertTrue(journal.last(2, 1).isEmpty());
+        assertEquals(1, journal.last(3, 1).size());
+      }
+      try(TapJournal journal = new TapJournal(dir, 4, 64, 1000, 16, 2, 0)) { //開き直しても同じ上限
+        assertTrue(journal.last(1, 1).isEmpty());
+        assertEquals(1, journal.last(2, 1).size());
+        assertEquals(1, journal.last(3, 1).size());
+      }
+    } finally {
+      delete(dir);
+    }
+  }
+
+  @Test
+  public void compactDropsIdsThatAreGone() throws IOException {
+    File dir = newDir();
+    try {
+      try(TapJournal journal = new TapJournal(dir, 4, 64, 1000, 16)) {
+        for(int i=0; i<4; i++) journal.append(1000 + i, "reader", "212F", 1, 0);
+        for(int i=0; i<4; i++) journal.append(5000 + i, "reader", "212F", 2, 0);
+        journal.sync();
+        journal.compact(5000);
+        assertTrue(journal.last(1, 4).isEmpty());
+        assertEquals(4, journal.last(2, 4).size());
+      }
+    } finally {
+      delete(dir);
+    }
+  }
+}
@@ -0,0 +1,107 @@
+package com.teratail.q_bqafusg2g5at35;
+
+import org.junit.Test;
+
+import java.io.*;
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+public class TraceTest {
+  //送受信したバイト列をそのまま並べて残す Transport
+  private static class Tap implements Transport {
+    private final Transport transport;
+    final List<String> log = new ArrayList<>();
+
+    Tap(Transport transport) {
+      this.transport = transport;
+    }
+
+    @Override
+    public void setLogger(Logger log) {
+      transport.setLogger(log);
+    }
+    @Override
+    public void write(byte[] bytes) throws IOException {
+      write(bytes, bytes.length);
+    }
+    @Override
+    public void write(byte[] bytes, int length) throws IOException {
+      log.add("W " + Bytes.toString(bytes, 0, length));
+      transport.write(bytes, length);
+    }
+    @Override
+    public byte[] read(int timeout) throws IOException {
+      byte[] buffer = new byte[Frame.MAX_LENGTH];
+      return Arrays.copyOf(buffer, read(buffer, 0, timeout));
+    }
+    @Override
+    public int read(byte[] buffer, int offset, int timeout) throws IOException {
+      try {
+        int len = transport.read(buffer, offset, timeout);
+        log.add("R " + Bytes.toString(buffer, offset, offset + len));
+        return len;
+      } catch(IOException e) {
+        log.add("E " + e.getMessage());
+        throw e;
+      }
+    }
+    @Override
+    public void close() {
+      transport.close();
+    }
+  }
+
+  //カードを何度か読み, 離した後も 1 回ポーリングする. 送受信の記録と結果を比べる
+  @Test
+  public void replayReproducesRecordedSession() throws Exception {
+    File file = File.createTempFile("trace", ".bin");
+    try {
+      SimulatedTransport simulated = new SimulatedTransport().setTimeScale(0);
+      simulated.addCard(new SimulatedTransport.Card(Bytes.of(1, 2, 3, 4, 5, 6, 7, 8), Bytes.of(0, 0xf1, 0, 0, 0, 1, 0x43, 0), 3));
+      List<String> recorded = new ArrayList<>();
+      Tap tap = new Tap(simulated);
+      try(Device device = new Device(new RecordingTransport(tap, file), Logger.NONE, "test")) {
+        for(int i=0; i<5; i++) recorded.add(Bytes.toString(device.sense_ttf("212F")));
+        simulated.clearCards();
+        recorded.add(String.valueOf(device.sense_ttf("212F")));
+      }
+      recorded.addAll(0, tap.log);
+
+      ReplayTransport replay = new ReplayTransport(file, 0);
+      Tap replayed = new Tap(replay);
+      List<String> results = new ArrayList<>();
+      try(Device device = new Device(replayed, Logger.NONE, "test")) {
+        for(int i=0; i<5; i++) results.add(Bytes.toString(device.sense_ttf("212F")));
+        results.add(String.valueOf(device.sense_ttf("212F")));
+      }
+      results.addAll(0, replayed.log);
+
+      assertEquals(recorded, results);
+      assertEquals(0, replay.getMismatches());
+      assertTrue(replay.isFinished());
+      assertEquals(tap.log.size(), replay.getRecords());
+    } finally {
+      file.delete();
+    }
+  }
+
+  //close() しなくても flushInterval 後にはファイルにある
+  @Test
+  public void recordsAreFlushedByTimer() throws Exception {
+    File file = File.createTempFile("trace", ".bin");
+    SimulatedTransport simulated = new SimulatedTransport().setTimeScale(0);
+    RecordingTransport recording = new RecordingTransport(simulated, file, 20);
+    try {
+      byte[] command = Frame.createRequest(Bytes.of(0xd6, 0x20)).frame;
+      recording.write(command);
+      long expected = Trace.HEADER_LENGTH + Trace.RECORD_HEADER_LENGTH + command.length;
+      long deadline = System.currentTimeMillis() + 2000;
+      while(file.length() < expected && System.currentTimeMillis() < deadline) Thread.sleep(10);
+      assertEquals(expected, file.length());
+    } finally {
+      recording.close();
+      file.delete();
+    }
+  }
+}